@@ -0,0 +1,226 @@
+package client;
+
+import core.Compression;
+import core.Packet;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A protocol 3 connection: any number of gets and puts over one socket, so a run of small
+ * files pays for the handshake and slow start once. Requests go out as soon as they are
+ * made, without waiting for earlier replies; a reader thread matches each reply to its
+ * request by ID and completes the request's future. Callers bound how many they keep in
+ * flight (see {@link core.Batch}). With a compression level every body, both ways, is
+ * deflated (see {@link Compression}), though the server may still answer a read raw.
+ */
+final class TCPSession implements AutoCloseable {
+
+    private static final int protocol_session = 3;
+    private static final int read_timeout_millis = 30000; // a reply body that stops arriving fails the session
+
+    private record Pending(boolean put, String fileName, String localName, long size, CompletableFuture<Boolean> done) {
+    }
+
+    private final SocketChannel channel;
+    private final DataInputStream in;   // unbuffered, so nothing past a reply header is read ahead of a body
+    private final DataOutputStream out; // guarded by itself; a request and its body go out together
+    private final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+    private final Thread reader;
+    private final int compressionLevel; // 0 sends and asks for raw bodies
+    private int nextId;
+
+    TCPSession(InetSocketAddress server, int compressionLevel) throws IOException {
+        this.compressionLevel = compressionLevel;
+        channel = SocketChannel.open(server);
+        channel.socket().setTcpNoDelay(true); // requests are small and back to back; never hold one for an ACK
+        in = new DataInputStream(channel.socket().getInputStream());
+        out = new DataOutputStream(new BufferedOutputStream(channel.socket().getOutputStream(), 64 * 1024));
+        reader = Thread.ofPlatform().daemon().name("tcp-session-reader").start(this::readReplies);
+    }
+
+    /**
+     * Asks for {@code fileName}; the future completes once it is stored as {@code localName}.
+     */
+    CompletableFuture<Boolean> get(String fileName, String localName) throws IOException {
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+        synchronized (out) {
+            int id = register(new Pending(false, fileName, localName, 0, done));
+            try {
+                writeRequest(Packet.op_read_request, id, fileName);
+                out.flush();
+            } catch (IOException e) {
+                pending.remove(id);
+                throw e;
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Sends {@code localName} as {@code fileName}; the future completes once the server
+     * confirms it stored all of it.
+     */
+    CompletableFuture<Boolean> put(String localName, String fileName) throws IOException {
+        File file = new File(localName);
+        if (!file.exists()) {
+            System.err.println("Local file not found.");
+            return CompletableFuture.completedFuture(false);
+        }
+
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = source.size();
+            synchronized (out) {
+                int id = register(new Pending(true, fileName, localName, size, done));
+                try {
+                    writeRequest(Packet.op_write_request, id, fileName);
+                    out.writeLong(size);
+                    if (compressionLevel > 0) {
+                        Compression.deflate(Channels.newInputStream(source), size, compressionLevel, out);
+                    }
+                    out.flush();
+
+                    long position = compressionLevel > 0 ? size : 0;
+                    while (position < size) {
+                        long sent = source.transferTo(position, size - position, channel);
+                        if (sent == 0 && position >= source.size()) {
+                            throw new IOException("File shrank during transfer: " + localName);
+                        }
+                        position += sent;
+                    }
+                } catch (IOException e) {
+                    pending.remove(id);
+                    throw e;
+                }
+            }
+        }
+        return done;
+    }
+
+    private int register(Pending request) {
+        int id = nextId++;
+        pending.put(id, request);
+        return id;
+    }
+
+    private void writeRequest(int opcode, int id, String fileName) throws IOException {
+        out.writeShort(protocol_session << 8 | opcode | (compressionLevel > 0 ? Compression.flag : 0));
+        out.writeInt(id);
+        out.writeUTF(fileName);
+    }
+
+    /**
+     * Reads replies until the server closes the connection, which it does once it has
+     * answered everything after {@link #close} ends the session.
+     */
+    private void readReplies() {
+        try {
+            while (true) {
+                int id;
+                try {
+                    id = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                long size = in.readLong();
+                Pending request = pending.get(id); // left in place until handled, so a failure below fails it too
+                if (request == null) {
+                    throw new IOException("Reply to unknown request " + id);
+                }
+                if (size < 0) {
+                    System.err.println("Server error: " + in.readUTF() + " (" + request.fileName() + ")");
+                    request.done().complete(false);
+                } else if (request.put()) {
+                    if (size != request.size()) {
+                        System.err.println("Server stored " + size + " of " + request.size() + " bytes");
+                    }
+                    request.done().complete(size == request.size());
+                } else {
+                    boolean deflated = compressionLevel > 0 && in.readUnsignedByte() == Compression.encoding_deflate;
+                    request.done().complete(receive(request.localName(), size, deflated));
+                }
+                pending.remove(id);
+            }
+        } catch (IOException e) {
+            System.err.println("Session failed: " + e.getMessage());
+        } finally {
+            try {
+                channel.close(); // first, so later requests fail instead of waiting for replies that cannot come
+            } catch (IOException ignored) {}
+            for (Pending request : pending.values()) {
+                request.done().complete(false);
+            }
+        }
+    }
+
+    /**
+     * Stores a reply body; one that cannot be stored is still read so the replies behind it stay in step.
+     */
+    private boolean receive(String localName, long size, boolean deflated) throws IOException {
+        // only bodies are timed: waiting for a reply is open-ended, since the server answers in order
+        channel.socket().setSoTimeout(read_timeout_millis);
+        try {
+            return store(localName, size, deflated);
+        } finally {
+            channel.socket().setSoTimeout(0);
+        }
+    }
+
+    private boolean store(String localName, long size, boolean deflated) throws IOException {
+        FileChannel target;
+        try {
+            target = FileChannel.open(new File(localName).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("I/O Error: " + e.getMessage());
+            if (deflated) {
+                Compression.skip(in);
+            } else {
+                in.skipNBytes(size);
+            }
+            return false;
+        }
+        try (target) {
+            if (deflated) {
+                Compression.inflate(in, size, (data, offset, length) -> target.write(ByteBuffer.wrap(data, offset, length)));
+                return true;
+            }
+            long position = 0;
+            while (position < size) {
+                long received = target.transferFrom(Channels.newChannel(in), position, size - position);
+                if (received == 0) {
+                    throw new EOFException("Connection closed after " + position + " of " + size + " bytes");
+                }
+                position += received;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Ends the session once every request made so far has its reply.
+     */
+    @Override
+    public void close() {
+        try {
+            channel.shutdownOutput();
+            reader.join();
+        } catch (IOException ignored) {
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -1,82 +1,462 @@
-package client;
-
-import java.io.*;
-import java.net.Socket;
-
-
-public class TFTPTCPClient {
-
-    private static final int port = 9019; // TCP Server port
-
-    public static void main(String[] args) {
-        if (args.length != 3) {
-            System.err.println("Usage: java TFTPTCPClient <serverIP> <get|put> <filename>");
-            return;
-        }
-
-        String serverIP = args[0];
-        String command = args[1];
-        String fileName = args[2];
-
-        try (Socket socket = new Socket(serverIP, port);
-             DataInputStream in = new DataInputStream(socket.getInputStream());
-             DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
-
-            if ("get".equals(command)) {
-                receiveFile(fileName, in, out);
-            } else if ("put".equals(command)) {
-                sendFile(fileName, in, out);
-            } else {
-                System.err.println("Unknown command: " + command);
-            }
-        } catch (IOException e) {
-            System.err.println("I/O Error: " + e.getMessage());
-        }
-    }
-
-    private static void receiveFile(String fileName, DataInputStream in, DataOutputStream out) throws IOException {
-        out.writeShort(1); // read request
-        out.writeUTF(fileName);
-
-        try (FileOutputStream fos = new FileOutputStream(fileName)) {
-            while (true) {
-                int bytesRead = in.readShort();
-
-                if (bytesRead == -1) { // indicates  error
-                    String errorMsg = in.readUTF();
-                    System.err.println("Server error: " + errorMsg);
-                    break;
-                }
-                if (bytesRead == 0) {
-                    break;
-                }
-
-                byte[] buffer = new byte[bytesRead];
-                in.readFully(buffer);
-                fos.write(buffer);
-            }
-        }
-    }
-
-    private static void sendFile(String fileName, DataInputStream in, DataOutputStream out) throws IOException {
-        File file = new File(fileName);
-        if (!file.exists()) {
-            System.err.println("Local file not found.");
-            return;
-        }
-
-        out.writeShort(2); // write request
-        out.writeUTF(fileName);
-
-        try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] buffer = new byte[512];
-            int bytesRead;
-
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                out.writeShort(bytesRead);
-                out.write(buffer, 0, bytesRead);
-            }
-            out.writeShort(0); // end of file
-        }
-    }
-}
+package client;
+
+import core.Batch;
+import core.Compression;
+import core.Packet;
+import core.Resume;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+public class TFTPTCPClient {
+
+    private static final int port = 9019; // TCP Server port
+    private static final int protocol_framed = 1;   // 512-byte length-prefixed frames
+    private static final int protocol_streamed = 2; // one length-prefixed body moved with transferTo/transferFrom
+    private static final int protocol_session = 3;  // protocol 2 bodies, many pipelined requests per connection
+    private static final int op_ranged_read = 0x81; // TCP only: a read of [offset, offset + length)
+    private static final int op_resumed_read = 0x82;     // TCP only: a read continuing after the bytes we have
+    private static final int op_resumable_write = 0x83;  // TCP only: a write continuing a partial the server kept
+    private static final int read_timeout_millis = 30000; // a server that stops sending fails the transfer
+    private static final long head_bytes = 1 << 20; // a segmented get's first range, which also learns the size
+
+    private static int protocolVersion = protocol_streamed;
+    private static int parallelTransfers = 4; // batch mode worker threads
+    private static int pipelineDepth = 8;     // batch requests each session keeps in flight
+    private static int segments = 1;          // connections a get is split across
+    private static boolean resume = false;    // continue a partial download, make uploads resumable
+    private static int compressionLevel = 0;  // deflate level for uploads, and asks for deflated downloads; 0 is raw
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println("Usage: java TFTPTCPClient <serverIP> <get|put> <filename> [--protocol 1|2|3] [--segments <n>] [--resume] [--compress <1-9>]");
+            System.err.println("       java TFTPTCPClient <serverIP> batch <manifest|-> [--parallel <n>] [--pipeline <n>] [--protocol 1|2|3] [--compress <1-9>]");
+            return;
+        }
+
+        String serverIP = args[0];
+        String command = args[1];
+        String fileName = args[2];
+
+        boolean protocolGiven = false;
+        for (int i = 3; i < args.length; i++) {
+            if ("--protocol".equals(args[i]) && i + 1 < args.length) {
+                configure(Integer.parseInt(args[++i]));
+                protocolGiven = true;
+            } else if ("--parallel".equals(args[i]) && i + 1 < args.length) {
+                parallelTransfers = Math.max(1, Integer.parseInt(args[++i]));
+            } else if ("--pipeline".equals(args[i]) && i + 1 < args.length) {
+                pipelineDepth = Math.max(1, Integer.parseInt(args[++i]));
+            } else if ("--segments".equals(args[i]) && i + 1 < args.length) {
+                segments = Math.max(1, Integer.parseInt(args[++i]));
+            } else if ("--resume".equals(args[i])) {
+                resume = true;
+            } else if ("--compress".equals(args[i]) && i + 1 < args.length) {
+                compressionLevel = Math.clamp(Integer.parseInt(args[++i]), 0, 9);
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                return;
+            }
+        }
+
+        try {
+            if ("get".equals(command)) {
+                get(serverIP, fileName, fileName);
+            } else if ("put".equals(command)) {
+                put(serverIP, fileName, fileName);
+            } else if ("batch".equals(command)) {
+                if (!protocolGiven) {
+                    protocolVersion = protocol_session; // many files are what sessions are for
+                }
+                if (!runBatch(serverIP, fileName)) {
+                    System.exit(1);
+                }
+            } else {
+                System.err.println("Unknown command: " + command);
+            }
+        } catch (IOException e) {
+            System.err.println("I/O Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Selects the protocol for transfers started by code that embeds the client.
+     */
+    public static void configure(int version) {
+        protocolVersion = version == protocol_framed || version == protocol_session ? version : protocol_streamed;
+    }
+
+    /**
+     * Downloads {@code fileName} from the server into {@code localName} over a new connection,
+     * or over several with {@code --segments}. With {@code --resume} a partial local file is
+     * continued instead, over protocol 2 whatever the protocol setting.
+     *
+     * @return true if the whole file arrived
+     */
+    public static boolean get(String serverIP, String fileName, String localName) throws IOException {
+        InetSocketAddress server = new InetSocketAddress(serverIP, port);
+        if (segments > 1 && protocolVersion != protocol_framed && !resume) {
+            return getSegmented(server, fileName, localName);
+        }
+        return get(server, fileName, localName, new byte[Short.MAX_VALUE]);
+    }
+
+    /**
+     * Uploads {@code localName} to the server as {@code fileName} over a new connection.
+     *
+     * @return true if the file was sent; protocol 2 also requires the server to confirm it stored all of it
+     */
+    public static boolean put(String serverIP, String localName, String fileName) throws IOException {
+        return put(new InetSocketAddress(serverIP, port), localName, fileName, new byte[Short.MAX_VALUE]);
+    }
+
+    /**
+     * Runs a manifest of gets and puts (see {@link Batch}) on parallelTransfers threads. With
+     * protocol 3 each thread keeps one session and pipelines up to pipelineDepth requests on
+     * it; the older protocols open a connection per transfer, so what each thread reuses is
+     * the resolved server address and its frame buffer.
+     *
+     * @return true if every transfer succeeded
+     */
+    private static boolean runBatch(String serverIP, String manifest) throws IOException {
+        InetSocketAddress server = new InetSocketAddress(serverIP, port);
+        if (server.isUnresolved()) {
+            throw new UnknownHostException(serverIP);
+        }
+        try {
+            if (protocolVersion == protocol_session) {
+                return Batch.run(Batch.parse(manifest), parallelTransfers, pipelineDepth, () -> {
+                    TCPSession session = new TCPSession(server, compressionLevel);
+                    return new Batch.Worker() {
+                        @Override
+                        public CompletableFuture<Boolean> get(String remoteName, String localName) throws IOException {
+                            return session.get(remoteName, localName);
+                        }
+
+                        @Override
+                        public CompletableFuture<Boolean> put(String localName, String remoteName) throws IOException {
+                            return session.put(localName, remoteName);
+                        }
+
+                        @Override
+                        public void close() {
+                            session.close();
+                        }
+                    };
+                });
+            }
+            return Batch.run(Batch.parse(manifest), parallelTransfers, () -> {
+                byte[] buffer = new byte[Short.MAX_VALUE];
+                return new Batch.Worker() {
+                    @Override
+                    public CompletableFuture<Boolean> get(String remoteName, String localName) throws IOException {
+                        return CompletableFuture.completedFuture(TFTPTCPClient.get(server, remoteName, localName, buffer));
+                    }
+
+                    @Override
+                    public CompletableFuture<Boolean> put(String localName, String remoteName) throws IOException {
+                        return CompletableFuture.completedFuture(TFTPTCPClient.put(server, localName, remoteName, buffer));
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                };
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static boolean get(InetSocketAddress server, String fileName, String localName, byte[] buffer) throws IOException {
+        if (protocolVersion == protocol_session && !resume) {
+            try (TCPSession session = new TCPSession(server, compressionLevel)) {
+                return session.get(fileName, localName).join();
+            }
+        }
+        // the input side stays unbuffered so nothing past a header is read ahead of transferFrom
+        try (SocketChannel channel = connect(server);
+             DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(channel.socket().getOutputStream(), 64 * 1024))) {
+            if (protocolVersion != protocol_framed || resume) {
+                return receiveStreamed(fileName, localName, in, out);
+            } else {
+                return receiveFile(fileName, localName, in, out, buffer);
+            }
+        }
+    }
+
+    private static boolean put(InetSocketAddress server, String localName, String fileName, byte[] buffer) throws IOException {
+        if (protocolVersion == protocol_session && !resume) {
+            try (TCPSession session = new TCPSession(server, compressionLevel)) {
+                return session.put(localName, fileName).join();
+            }
+        }
+        try (SocketChannel channel = connect(server);
+             DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(channel.socket().getOutputStream(), 64 * 1024))) {
+            if (protocolVersion != protocol_framed || resume) {
+                return sendStreamed(fileName, localName, channel, in, out);
+            } else {
+                return sendFile(fileName, localName, in, out, buffer);
+            }
+        }
+    }
+
+    /**
+     * Opens a connection whose reads give up after {@link #read_timeout_millis}. Bodies are read
+     * through its stream rather than its channel, since channel reads ignore the timeout.
+     */
+    private static SocketChannel connect(InetSocketAddress server) throws IOException {
+        SocketChannel channel = SocketChannel.open(server);
+        channel.socket().setSoTimeout(read_timeout_millis);
+        return channel;
+    }
+
+    /**
+     * Downloads one file over {@code segments} connections at once. The first ranged read
+     * fetches the head of the file and learns its size; the rest is split evenly across the
+     * connections, each writing its range into the preallocated target with positional
+     * transfers. A file that fits in the head takes a single request.
+     */
+    private static boolean getSegmented(InetSocketAddress server, String fileName, String localName) throws IOException {
+        try (FileChannel target = FileChannel.open(new File(localName).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = readRange(server, fileName, target, 0, head_bytes);
+            if (size <= head_bytes) {
+                return size >= 0;
+            }
+            target.write(ByteBuffer.allocate(1), size - 1); // reserve the whole file up front
+
+            long share = (size - head_bytes + segments - 1) / segments;
+            AtomicBoolean ok = new AtomicBoolean(true);
+            List<Thread> threads = new ArrayList<>();
+            for (long offset = head_bytes; offset < size; offset += share) {
+                long start = offset;
+                long length = Math.min(share, size - offset);
+                threads.add(Thread.ofPlatform().name("segment-" + threads.size()).start(() -> {
+                    try {
+                        if (readRange(server, fileName, target, start, length) != size) {
+                            ok.set(false); // refused, or the file changed under us
+                        }
+                    } catch (IOException e) {
+                        System.err.println("Segment at " + start + " failed: " + e.getMessage());
+                        ok.set(false);
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            return ok.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Reads bytes [offset, offset + length) of the file into the same range of {@code target}
+     * over a connection of its own.
+     *
+     * @return the size of the whole file, or -1 if the server refused
+     */
+    private static long readRange(InetSocketAddress server, String fileName, FileChannel target, long offset, long length)
+            throws IOException {
+        try (SocketChannel channel = connect(server);
+             DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(channel.socket().getOutputStream()))) {
+            out.writeShort(protocol_streamed << 8 | op_ranged_read);
+            out.writeUTF(fileName);
+            out.writeLong(offset);
+            out.writeLong(length);
+            out.flush();
+
+            long size = in.readLong();
+            if (size < 0) {
+                System.err.println("Server error: " + in.readUTF());
+                return -1;
+            }
+            long end = Math.min(size, offset + length);
+            for (long position = offset; position < end; ) {
+                long received = target.transferFrom(Channels.newChannel(in), position, end - position);
+                if (received == 0) {
+                    throw new EOFException("Connection closed after " + (position - offset) + " of " + (end - offset) + " bytes");
+                }
+                position += received;
+            }
+            return size;
+        }
+    }
+
+    private static boolean receiveFile(String fileName, String localName, DataInputStream in, DataOutputStream out,
+                                       byte[] buffer) throws IOException {
+        out.writeShort(Packet.op_read_request);
+        out.writeUTF(fileName);
+        out.flush();
+
+        try (FileOutputStream fos = new FileOutputStream(localName)) {
+            while (true) {
+                int bytesRead = in.readShort();
+
+                if (bytesRead == -1) { // indicates  error
+                    String errorMsg = in.readUTF();
+                    System.err.println("Server error: " + errorMsg);
+                    return false;
+                }
+                if (bytesRead == 0) {
+                    return true;
+                }
+
+                in.readFully(buffer, 0, bytesRead);
+                fos.write(buffer, 0, bytesRead);
+            }
+        }
+    }
+
+    private static boolean sendFile(String fileName, String localName, DataInputStream in, DataOutputStream out,
+                                    byte[] buffer) throws IOException {
+        File file = new File(localName);
+        if (!file.exists()) {
+            System.err.println("Local file not found.");
+            return false;
+        }
+
+        out.writeShort(Packet.op_write_request);
+        out.writeUTF(fileName);
+
+        try (FileInputStream fis = new FileInputStream(file)) {
+            int bytesRead;
+
+            while ((bytesRead = fis.read(buffer, 0, 512)) != -1) {
+                out.writeShort(bytesRead);
+                out.write(buffer, 0, bytesRead);
+            }
+            out.writeShort(0); // end of file
+            out.flush();
+        }
+        return true;
+    }
+
+    /**
+     * Protocol 2 read: the server answers with the file length (or -1 and an error
+     * message) followed by the raw body, which goes to disk through FileChannel.transferFrom.
+     * A resumed read sends the length and digest of the partial local file and gets back,
+     * after the file length, the offset the body starts at: ours, or 0 if the server's copy
+     * does not start with the same bytes. With {@code --compress} the request carries
+     * {@link Compression#flag} and the header ends with the encoding the server chose.
+     */
+    private static boolean receiveStreamed(String fileName, String localName, DataInputStream in,
+                                        DataOutputStream out) throws IOException {
+        Path local = new File(localName).toPath();
+        long have = resume && Files.exists(local) ? Files.size(local) : 0;
+        String digest = have > 0 ? Resume.digest(local, have) : null;
+        int compress = compressionLevel > 0 ? Compression.flag : 0;
+        if (digest != null) {
+            out.writeShort(protocol_streamed << 8 | op_resumed_read | compress);
+            out.writeUTF(fileName);
+            out.writeLong(have);
+            out.writeUTF(digest);
+        } else {
+            out.writeShort(protocol_streamed << 8 | Packet.op_read_request | compress);
+            out.writeUTF(fileName);
+        }
+        out.flush();
+
+        long size = in.readLong();
+        if (size < 0) {
+            System.err.println("Server error: " + in.readUTF());
+            return false;
+        }
+        long start = digest != null ? in.readLong() : 0;
+        boolean deflated = compress != 0 && in.readUnsignedByte() == Compression.encoding_deflate;
+
+        try (FileChannel target = FileChannel.open(local, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            target.truncate(start);
+            if (deflated) {
+                target.position(start);
+                Compression.inflate(in, size - start, (data, offset, length) -> target.write(ByteBuffer.wrap(data, offset, length)));
+                return true;
+            }
+            long position = start;
+            while (position < size) {
+                long received = target.transferFrom(Channels.newChannel(in), position, size - position);
+                if (received == 0) {
+                    throw new EOFException("Connection closed after " + position + " of " + size + " bytes");
+                }
+                position += received;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Protocol 2 write: announce the length, wait for the server's go-ahead, push the body
+     * with FileChannel.transferTo, then wait for the server to confirm what it stored. A
+     * resumable write also sends the file's digest, and the go-ahead is the offset to send
+     * from, past what the server kept of an earlier attempt. With {@code --compress} the
+     * body goes as deflate frames.
+     */
+    private static boolean sendStreamed(String fileName, String localName, SocketChannel channel,
+                                     DataInputStream in, DataOutputStream out) throws IOException {
+        File file = new File(localName);
+        if (!file.exists()) {
+            System.err.println("Local file not found.");
+            return false;
+        }
+
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = source.size();
+            String digest = resume ? Resume.digest(file.toPath(), size) : null;
+            int compress = compressionLevel > 0 ? Compression.flag : 0;
+            out.writeShort(protocol_streamed << 8 | (digest != null ? op_resumable_write : Packet.op_write_request) | compress);
+            out.writeUTF(fileName);
+            out.writeLong(size);
+            if (digest != null) {
+                out.writeUTF(digest);
+            }
+            out.flush();
+
+            long start = in.readLong();
+            if (start < 0) {
+                System.err.println("Server error: " + in.readUTF());
+                return false;
+            }
+
+            long position = Math.min(start, size);
+            if (compress != 0) {
+                Compression.deflate(Channels.newInputStream(source.position(position)), size - position, compressionLevel, out);
+                out.flush();
+                position = size;
+            }
+            while (position < size) {
+                long sent = source.transferTo(position, size - position, channel);
+                if (sent == 0 && position >= source.size()) {
+                    throw new IOException("File shrank during transfer: " + fileName);
+                }
+                position += sent;
+            }
+
+            long stored = in.readLong();
+            if (stored != size) {
+                System.err.println("Server stored " + stored + " of " + size + " bytes");
+                return false;
+            }
+            return true;
+        }
+    }
+}
@@ -1,95 +1,592 @@
-package server;
-
-import java.io.*;
-import java.net.*;
-
-
-public class TFTPTCPServer {
-
-    private static final int port = 9019;
-
-    public static void main(String[] args) {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("TCP TFTP Server is listening on port " + port);
-
-            // Server is listening indefinitely for incoming client connections
-            while (true) {
-                Socket clientSocket = serverSocket.accept(); // wait for client connection
-                new Thread(new ClientHandler(clientSocket)).start(); // Each client handled by a new thread
-            }
-        } catch (IOException e) {
-            System.err.println("Server encountered an error: " + e.getMessage());
-        }
-    }
-
-    /**
-     * class handles client requests for reading and writing files.
-     */
-    private static class ClientHandler implements Runnable {
-        private final Socket clientSocket;
-
-        ClientHandler(Socket socket) {
-            this.clientSocket = socket;
-        }
-
-        @Override
-        public void run() {
-            try (DataInputStream in = new DataInputStream(clientSocket.getInputStream());
-                 DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream())) {
-
-                int opcode = in.readShort();  // read the opcode .
-                String fileName = in.readUTF(); // read the filename
-
-                if (opcode == 1) {
-                    handleReadRequest(fileName, out);
-                } else if (opcode == 2) {
-                    handleWriteRequest(fileName, in);
-                } else {
-                    sendError(out, "Invalid request.");
-                }
-            } catch (IOException e) {
-                System.err.println("Client handling failed: " + e.getMessage());
-            } finally {
-                try {
-                    clientSocket.close();
-                } catch (IOException ignored) {}
-            }
-        }
-
-        private void handleReadRequest(String fileName, DataOutputStream out) throws IOException {
-            File file = new File(fileName);
-            if (!file.exists()) {
-                sendError(out, "File not found.");
-                return;
-            }
-
-            try (FileInputStream fis = new FileInputStream(file)) {
-                byte[] buffer = new byte[512];
-                int bytesRead;
-
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    out.writeShort(bytesRead);
-                    out.write(buffer, 0, bytesRead);
-                }
-                out.writeShort(0); // indicate that teh file ends
-            }
-        }
-
-        private void handleWriteRequest(String fileName, DataInputStream in) throws IOException {
-            try (FileOutputStream fos = new FileOutputStream(fileName)) {
-                int bytesRead;
-                byte[] buffer = new byte[512];
-
-                while ((bytesRead = in.readShort()) != 0) {
-                    in.readFully(buffer, 0, bytesRead);
-                    fos.write(buffer, 0, bytesRead);
-                }
-            }
-        }
-
-        private void sendError(DataOutputStream out, String errorMsg) throws IOException {
-            out.writeShort(-1); // means error
-            out.writeUTF(errorMsg);
-        }
-    }
-}
+package server;
+
+import core.BandwidthScheduler;
+import core.Compression;
+import core.FileCache;
+import core.MetricsExporter;
+import core.Packet;
+import core.Resume;
+import core.TransferMetrics;
+import core.WriteBehindFile;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class TFTPTCPServer {
+
+    private static final int port = 9019;
+    private static final int protocol_framed = 1;   // 512-byte length-prefixed frames
+    private static final int protocol_streamed = 2; // one length-prefixed body moved with transferTo/transferFrom
+    private static final int protocol_session = 3;  // protocol 2 bodies, many tagged requests per connection
+    private static final int no_request_id = -1;    // protocols 1 and 2 answer a single, untagged request
+    private static final int op_ranged_read = 0x81; // TCP only, protocol 2 and up: a read of [offset, offset + length)
+    private static final int op_resumed_read = 0x82;     // TCP only, protocol 2: a read continuing after bytes the client has
+    private static final int op_resumable_write = 0x83;  // TCP only, protocol 2: a write continuing a partial kept by the server
+    private static final long queue_wait_millis = 5000; // longest a queued connection waits for a slot
+    private static final int read_timeout_millis = 30000;
+
+    private static int maxTransfers = 512; // transfers served at once
+    private static int maxQueued = 1024;   // connections allowed to wait for a free slot
+    private static boolean virtualThreads = false;
+    private static long cacheBytes = 64L * 1024 * 1024; // --cache-mb, shared by the two caches below
+    private static FileCache fileCache;
+    private static int compressionLevel = 6; // deflate level for bodies clients ask to have compressed, 0 sends them raw
+    private static FileCache compressedCache; // hot files already deflated
+    private static long syncEveryBytes = -1; // --fsync policy for uploads, see WriteBehindFile
+    private static final TransferMetrics metrics = new TransferMetrics("tcp");
+    private static BandwidthScheduler scheduler; // paces reads, unlimited unless a rate is given
+
+    private static Semaphore transferSlots;
+    private static final AtomicInteger queued = new AtomicInteger();
+
+    public static void main(String[] args) {
+        int metricsPort = 0; // no Prometheus endpoint unless asked for
+        long rateLimit = 0;
+        long clientRateLimit = 0;
+        int clientPrefix = 32;
+        List<BandwidthScheduler.PriorityClass> classes = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--max-transfers".equals(args[i]) && i + 1 < args.length) {
+                maxTransfers = Math.max(1, Integer.parseInt(args[++i]));
+            } else if ("--queue".equals(args[i]) && i + 1 < args.length) {
+                maxQueued = Math.max(0, Integer.parseInt(args[++i]));
+            } else if ("--virtual-threads".equals(args[i])) {
+                virtualThreads = true;
+            } else if ("--cache-mb".equals(args[i]) && i + 1 < args.length) {
+                cacheBytes = Math.max(0, Long.parseLong(args[++i])) * 1024 * 1024;
+            } else if ("--compression-level".equals(args[i]) && i + 1 < args.length) {
+                compressionLevel = Math.clamp(Integer.parseInt(args[++i]), 0, 9);
+            } else if ("--fsync".equals(args[i]) && i + 1 < args.length) {
+                syncEveryBytes = WriteBehindFile.parseSyncPolicy(args[++i]);
+            } else if ("--metrics-port".equals(args[i]) && i + 1 < args.length) {
+                metricsPort = Integer.parseInt(args[++i]);
+            } else if ("--rate-limit".equals(args[i]) && i + 1 < args.length) {
+                rateLimit = BandwidthScheduler.parseRate(args[++i]);
+            } else if ("--client-rate-limit".equals(args[i]) && i + 1 < args.length) {
+                clientRateLimit = BandwidthScheduler.parseRate(args[++i]);
+            } else if ("--client-prefix".equals(args[i]) && i + 1 < args.length) {
+                clientPrefix = Integer.parseInt(args[++i]);
+            } else if ("--class".equals(args[i]) && i + 1 < args.length) {
+                classes.add(BandwidthScheduler.PriorityClass.parse(args[++i]));
+            } else {
+                System.err.println("Usage: java TFTPTCPServer [--max-transfers <n>] [--queue <n>] [--virtual-threads] [--cache-mb <n>] [--compression-level <0-9>] [--fsync none|close|<mb>] [--metrics-port <n>] [--rate-limit <rate>] [--client-rate-limit <rate> [--client-prefix <bits>]] [--class <glob>=<weight>]...");
+                return;
+            }
+        }
+
+        scheduler = new BandwidthScheduler(rateLimit, clientRateLimit, clientPrefix, classes);
+        long compressedBytes = compressionLevel > 0 ? cacheBytes / 4 : 0; // compressed forms are smaller
+        fileCache = new FileCache(cacheBytes - compressedBytes);
+        compressedCache = compressedCache(compressedBytes);
+
+        MetricsExporter.register(metrics, fileCache, compressedCache);
+        if (metricsPort > 0) {
+            try {
+                MetricsExporter.serve(metricsPort, metrics, fileCache, compressedCache);
+                System.out.println("Metrics at http://127.0.0.1:" + metricsPort + "/metrics");
+            } catch (IOException e) {
+                System.err.println("Metrics endpoint failed: " + e.getMessage());
+            }
+        }
+        transferSlots = new Semaphore(maxTransfers);
+        ThreadFactory threads = virtualThreads
+                ? Thread.ofVirtual().name("tcp-client-", 0).factory()
+                : Thread.ofPlatform().name("tcp-client-", 0).factory();
+
+        // accepting through a channel gives every client socket a SocketChannel for zero-copy transfers
+        try (ServerSocketChannel serverSocket = ServerSocketChannel.open()) {
+            serverSocket.bind(new InetSocketAddress(port));
+            System.out.println("TCP TFTP Server is listening on port " + port);
+
+            // Server is listening indefinitely for incoming client connections
+            while (true) {
+                Socket clientSocket = serverSocket.accept().socket(); // wait for client connection
+                clientSocket.setSoTimeout(read_timeout_millis);
+                admit(clientSocket, threads);
+            }
+        } catch (IOException e) {
+            System.err.println("Server encountered an error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A cache of files in their compressed form, at the current --compression-level.
+     */
+    private static FileCache compressedCache(long budgetBytes) {
+        return new FileCache(budgetBytes, (path, size) -> Compression.load(path, size, compressionLevel));
+    }
+
+    /**
+     * Starts a handler if a transfer slot is free, otherwise parks the connection in the
+     * bounded wait queue. When the queue is full too the client is told the server is busy
+     * straight away, on a virtual thread so rejections never cost a platform thread.
+     */
+    private static void admit(Socket clientSocket, ThreadFactory threads) {
+        if (transferSlots.tryAcquire()) {
+            threads.newThread(new ClientHandler(clientSocket, true)).start();
+        } else if (queued.incrementAndGet() <= maxQueued) {
+            threads.newThread(() -> {
+                boolean admitted = false;
+                try {
+                    admitted = transferSlots.tryAcquire(queue_wait_millis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    queued.decrementAndGet();
+                }
+                new ClientHandler(clientSocket, admitted).run();
+            }).start();
+        } else {
+            queued.decrementAndGet();
+            Thread.startVirtualThread(new ClientHandler(clientSocket, false));
+        }
+    }
+
+    /**
+     * class handles client requests for reading and writing files.
+     */
+    private static class ClientHandler implements Runnable {
+        private final Socket clientSocket;
+        private final boolean admitted; // holds a transfer slot; otherwise only answers "busy"
+        private int requestId = no_request_id; // the session request being answered, see runSession
+        private boolean compressed;            // the request being answered asked for deflated bodies, see Compression
+        private BandwidthScheduler.Flow flow = BandwidthScheduler.unlimited; // the read being answered, see PacedOutputStream
+
+        ClientHandler(Socket socket, boolean admitted) {
+            this.clientSocket = socket;
+            this.admitted = admitted;
+        }
+
+        @Override
+        public void run() {
+            // the input side stays unbuffered so nothing past the header is read ahead of transferFrom
+            try (DataInputStream in = new DataInputStream(clientSocket.getInputStream());
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new PacedOutputStream(clientSocket.getOutputStream()), 64 * 1024))) {
+
+                int header = in.readShort() & 0xffff; // protocol version in the high byte, opcode in the low byte
+                int opcode = header & 0xff;
+                int version = Math.max(protocol_framed, header >> 8);
+                if (version == protocol_streamed) {
+                    compressed = (opcode & Compression.flag) != 0;
+                    opcode &= ~Compression.flag;
+                }
+                if (version == protocol_session) {
+                    runSession(header, in, out);
+                    return;
+                }
+                String fileName = in.readUTF(); // read the filename
+
+                if (!admitted) {
+                    sendError(out, version, 0, "Server busy.");
+                } else if (version > protocol_session) {
+                    sendError(out, protocol_streamed, 4, "Unsupported protocol version.");
+                } else if (opcode == Packet.op_read_request) {
+                    if (version == protocol_streamed) {
+                        handleStreamedRead(fileName, 0, Long.MAX_VALUE, out);
+                    } else {
+                        handleReadRequest(fileName, out);
+                    }
+                } else if (opcode == op_ranged_read && version == protocol_streamed) {
+                    long offset = in.readLong();
+                    long length = in.readLong();
+                    handleStreamedRead(fileName, offset, length, out);
+                } else if (opcode == op_resumed_read && version == protocol_streamed) {
+                    long offset = in.readLong();
+                    String digest = in.readUTF();
+                    handleResumedRead(fileName, offset, digest, out);
+                } else if (opcode == op_resumable_write && version == protocol_streamed) {
+                    handleStreamedWrite(fileName, true, in, out);
+                } else if (opcode == Packet.op_write_request) {
+                    if (version == protocol_streamed) {
+                        handleStreamedWrite(fileName, false, in, out);
+                    } else {
+                        handleWriteRequest(fileName, in);
+                    }
+                } else {
+                    sendError(out, version, 4, "Invalid request.");
+                }
+            } catch (IOException e) {
+                System.err.println("Client handling failed: " + e.getMessage());
+            } finally {
+                try {
+                    clientSocket.close();
+                } catch (IOException ignored) {}
+                if (admitted) {
+                    transferSlots.release();
+                }
+            }
+        }
+
+        /**
+         * Protocol 3: one connection carries any number of requests, each
+         * {@code [short 3<<8|opcode][int id][UTF name]} followed, for a write, by {@code [long size][body]}
+         * with no go-ahead and, for a ranged read, by {@code [long offset][long length]}. Each reply starts with the ID of its request, then follows protocol 2:
+         * {@code [long size][body]} for a read, {@code [long stored]} for a write, or
+         * {@code [long -1][UTF message]}. Requests are served in the order they arrive, so a
+         * client can pipeline the next ones while this one is answered; the session ends when the
+         * client shuts down its side. The connection holds one transfer slot throughout.
+         */
+        private void runSession(int header, DataInputStream in, DataOutputStream out) throws IOException {
+            clientSocket.setTcpNoDelay(true); // replies are small and back to back; never hold one for an ACK
+            while (true) {
+                if (header >> 8 != protocol_session) {
+                    throw new IOException("Protocol " + (header >> 8) + " request inside a session");
+                }
+                int opcode = header & ~Compression.flag & 0xff;
+                compressed = (header & Compression.flag) != 0;
+                requestId = in.readInt();
+                String fileName = in.readUTF();
+
+                if (!admitted) {
+                    sendError(out, protocol_session, 0, "Server busy.");
+                    return;
+                } else if (opcode == Packet.op_read_request) {
+                    handleStreamedRead(fileName, 0, Long.MAX_VALUE, out);
+                } else if (opcode == op_ranged_read) {
+                    long offset = in.readLong();
+                    long length = in.readLong();
+                    handleStreamedRead(fileName, offset, length, out);
+                } else if (opcode == Packet.op_write_request) {
+                    handleStreamedWrite(fileName, false, in, out);
+                } else {
+                    sendError(out, protocol_session, 4, "Invalid request.");
+                    return; // nothing after an unknown request can be parsed
+                }
+                out.flush();
+
+                int high = in.read();
+                if (high < 0) {
+                    return; // the client ended the session
+                }
+                header = high << 8 | in.readUnsignedByte();
+            }
+        }
+
+        private void handleReadRequest(String fileName, DataOutputStream out) throws IOException {
+            File file = new File(fileName);
+            if (!file.exists()) {
+                sendError(out, protocol_framed, 1, "File not found.");
+                return;
+            }
+
+            TransferMetrics.Transfer stats = metrics.begin();
+            flow = scheduler.open(clientSocket.getInetAddress(), fileName);
+            try (InputStream fis = fileCache.open(file.toPath())) {
+                byte[] buffer = new byte[512];
+                int bytesRead;
+
+                while ((bytesRead = fis.read(buffer)) != -1) {
+                    out.writeShort(bytesRead);
+                    out.write(buffer, 0, bytesRead);
+                    stats.sent(bytesRead, false);
+                }
+                out.writeShort(0); // indicate that teh file ends
+                out.flush();
+                stats.completed();
+            } finally {
+                endFlow();
+                stats.end();
+            }
+        }
+
+        private void handleWriteRequest(String fileName, DataInputStream in) throws IOException {
+            TransferMetrics.Transfer stats = metrics.begin();
+            try (WriteBehindFile upload = new WriteBehindFile(new File(fileName).toPath(), -1, syncEveryBytes)) {
+                int bytesRead;
+                byte[] buffer = new byte[512];
+
+                while ((bytesRead = in.readShort()) != 0) {
+                    in.readFully(buffer, 0, bytesRead);
+                    upload.write(buffer, 0, bytesRead); // coalesced and written behind the socket reads
+                    stats.received(bytesRead);
+                }
+                upload.commit();
+                stats.completed();
+            } finally {
+                stats.end();
+            }
+        }
+
+        /**
+         * Protocol 2 read: the file length as a long, then the raw body. Cached files are
+         * written straight from the shared buffer; others go out with FileChannel.transferTo
+         * so the kernel moves them without a user-space copy.
+         * <p>
+         * A ranged read ({@code [long offset][long length]} after the name) gets the same
+         * header, still the length of the whole file, followed by just the bytes of that range
+         * that exist. Clients fetch a large file as several ranges over parallel connections.
+         */
+        private void handleStreamedRead(String fileName, long offset, long length, DataOutputStream out) throws IOException {
+            handleStreamedRead(fileName, offset, length, false, out);
+        }
+
+        /**
+         * Protocol 2 read that continues a partial download: {@code [long offset][UTF digest]}
+         * after the name, the client's length and the SHA-256 of what it has (see {@link Resume}).
+         * The reply is the file length, then the offset the body starts at: the client's
+         * offset if its bytes match the start of the file, otherwise 0, meaning start over.
+         */
+        private void handleResumedRead(String fileName, long offset, String digest, DataOutputStream out) throws IOException {
+            File file = new File(fileName);
+            if (!file.exists()) {
+                sendError(out, protocol_streamed, 1, "File not found.");
+                return;
+            }
+            handleStreamedRead(fileName, Resume.verify(file.toPath(), offset, digest), Long.MAX_VALUE, true, out);
+        }
+
+        private void handleStreamedRead(String fileName, long offset, long length, boolean announceOffset,
+                                        DataOutputStream out) throws IOException {
+            File file = new File(fileName);
+            if (!file.exists()) {
+                sendError(out, protocol_streamed, 1, "File not found.");
+                return;
+            }
+
+            TransferMetrics.Transfer stats = metrics.begin();
+            flow = scheduler.open(clientSocket.getInetAddress(), fileName);
+            try {
+                if (compressed && sendCompressed(file, offset, length, announceOffset, out, stats)) {
+                    stats.completed();
+                    return;
+                }
+                ByteBuffer cached = fileCache.get(file.toPath());
+                if (cached != null) {
+                    long size = cached.remaining();
+                    int start = (int) Math.clamp(offset, 0, size);
+                    reply(out, size);
+                    if (announceOffset) {
+                        out.writeLong(start);
+                    }
+                    if (compressed) {
+                        out.writeByte(Compression.encoding_raw);
+                    }
+                    out.flush();
+                    cached.position(start).limit(start + (int) Math.clamp(length, 0, size - start));
+                    write(cached, stats);
+                } else {
+                    sendStreamed(file, offset, length, announceOffset, out, stats);
+                }
+                stats.completed();
+            } finally {
+                endFlow();
+                stats.end();
+            }
+        }
+
+        private void endFlow() {
+            flow.close();
+            flow = BandwidthScheduler.unlimited;
+        }
+
+        /**
+         * Writes a buffer straight to the socket channel, a quantum of the flow at a time.
+         */
+        private void write(ByteBuffer body, TransferMetrics.Transfer stats) throws IOException {
+            SocketChannel channel = clientSocket.getChannel();
+            int limit = body.limit();
+            while (body.hasRemaining()) {
+                int chunk = (int) Math.min(body.remaining(), flow.quantum());
+                flow.acquire(chunk);
+                body.limit(body.position() + chunk);
+                while (body.hasRemaining()) {
+                    stats.sent(channel.write(body), false);
+                }
+                body.limit(limit);
+            }
+        }
+
+        /**
+         * Sends (a range of) an uncached file with FileChannel.transferTo.
+         */
+        private void sendStreamed(File file, long offset, long length, boolean announceOffset, DataOutputStream out,
+                                  TransferMetrics.Transfer stats) throws IOException {
+            try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = source.size();
+                long position = Math.clamp(offset, 0, size);
+                reply(out, size);
+                if (announceOffset) {
+                    out.writeLong(position);
+                }
+                if (compressed) {
+                    out.writeByte(Compression.encoding_raw);
+                }
+                out.flush();
+
+                SocketChannel channel = clientSocket.getChannel();
+                long end = position + Math.clamp(length, 0, size - position);
+                while (position < end) {
+                    long chunk = Math.min(end - position, flow.quantum());
+                    flow.acquire(chunk);
+                    long sent = source.transferTo(position, chunk, channel);
+                    if (sent == 0 && position >= source.size()) {
+                        throw new IOException("File shrank during transfer: " + file);
+                    }
+                    position += sent;
+                    stats.sent(sent, false);
+                }
+            }
+        }
+
+        /**
+         * Sends (a range of) the file deflated, when the client asked for that (see
+         * {@link Compression}). A whole-file read of a cacheable file is served from the cache
+         * of compressed forms, so a hot file is only compressed once; other reads are
+         * compressed as they go out. The reply header gains an encoding byte after the length
+         * (and offset). If compression is off, or the cached form is no smaller than the file,
+         * this sends nothing and the caller sends the body raw, under the raw encoding.
+         *
+         * @return whether the reply was sent
+         */
+        private boolean sendCompressed(File file, long offset, long length, boolean announceOffset, DataOutputStream out,
+                                       TransferMetrics.Transfer stats) throws IOException {
+            if (compressionLevel == 0) {
+                return false;
+            }
+            long size = file.length();
+            long start = Math.clamp(offset, 0, size);
+            long end = start + Math.clamp(length, 0, size - start);
+            ByteBuffer packed = start == 0 && end == size ? compressedCache.get(file.toPath()) : null;
+            if (packed != null && packed.remaining() >= size) {
+                return false; // does not compress
+            }
+
+            reply(out, size);
+            if (announceOffset) {
+                out.writeLong(start);
+            }
+            out.writeByte(Compression.encoding_deflate);
+            if (packed != null) {
+                out.flush();
+                write(packed, stats);
+            } else {
+                try (InputStream source = Files.newInputStream(file.toPath())) {
+                    source.skipNBytes(start);
+                    stats.sent(Compression.deflate(source, end - start, compressionLevel, out), false);
+                }
+            }
+            out.flush();
+            return true;
+        }
+
+        /**
+         * Protocol 2 write: the client sends the length as a long and waits for a go-ahead,
+         * then streams the body, which lands in a temporary file through FileChannel.transferFrom
+         * and replaces the target once complete. The server confirms with the number of bytes stored.
+         * In a session the body follows the length at once, and is skipped if it cannot be stored.
+         * <p>
+         * A resumable write adds the SHA-256 of the whole file after the length (see {@link Resume}).
+         * Its go-ahead is the number of bytes the server kept from an earlier, interrupted upload of
+         * the same content, and the client sends the body from there; if this one is interrupted too,
+         * what arrived is kept for the next attempt.
+         * <p>
+         * A compressed write sends the body as deflate frames (see {@link Compression}); the
+         * length and offsets still count raw bytes.
+         */
+        private void handleStreamedWrite(String fileName, boolean resumable, DataInputStream in, DataOutputStream out)
+                throws IOException {
+            long size = in.readLong();
+            String digest = resumable ? in.readUTF() : null;
+            boolean session = requestId != no_request_id;
+            WriteBehindFile upload;
+            try {
+                upload = Resume.isDigest(digest)
+                        ? WriteBehindFile.resumable(new File(fileName).toPath(), digest, syncEveryBytes)
+                        : new WriteBehindFile(new File(fileName).toPath(), size, syncEveryBytes);
+            } catch (IOException e) {
+                if (session && compressed) {
+                    Compression.skip(in); // keep the requests behind it in step
+                } else if (session) {
+                    in.skipNBytes(size);
+                }
+                sendError(out, protocol_streamed, 2, "Cannot write file.");
+                return;
+            }
+
+            TransferMetrics.Transfer stats = metrics.begin();
+            try (upload) {
+                long start = Math.min(upload.resumedFrom(), size);
+                if (!session) {
+                    out.writeLong(start); // ready for the body, from there
+                    out.flush();
+                }
+
+                // read through the socket's stream, not its channel, so a stalled client still hits the read timeout
+                long received = compressed
+                        ? Compression.inflate(in, size - start, upload::write)
+                        : upload.transferFrom(Channels.newChannel(in), size - start);
+                stats.received(received);
+                if (received < size - start) {
+                    throw new EOFException("Connection closed after " + (start + received) + " of " + size + " bytes");
+                }
+                upload.commit();
+                reply(out, size);
+                out.flush();
+                stats.completed();
+            } finally {
+                stats.end();
+            }
+        }
+
+        /**
+         * Sends the error message; the TFTP error code is only counted, the TCP protocol carries text.
+         */
+        private void sendError(DataOutputStream out, int version, int errorCode, String errorMsg) throws IOException {
+            metrics.errorSent(errorCode);
+            if (version == protocol_framed) {
+                out.writeShort(-1); // means error
+            } else {
+                reply(out, -1); // means error
+            }
+            out.writeUTF(errorMsg);
+        }
+
+        /**
+         * Writes a length or status, in a session preceded by the ID of the request it answers.
+         */
+        private void reply(DataOutputStream out, long value) throws IOException {
+            if (requestId != no_request_id) {
+                out.writeInt(requestId);
+            }
+            out.writeLong(value);
+        }
+
+        /**
+         * The socket's output stream, asking the current read's flow for every write that
+         * reaches it. Protocol 1 frames and bodies deflated on the fly go out through here;
+         * bodies written to the channel directly ask for themselves.
+         */
+        private final class PacedOutputStream extends FilterOutputStream {
+
+            PacedOutputStream(OutputStream socket) {
+                super(socket);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                flow.acquire(1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                flow.acquire(len);
+                out.write(b, off, len);
+            }
+        }
+    }
+}
@@ -1,198 +1,766 @@
-package client;
-
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.net.*;
-
-public class TFTPUDPClient {
-
-    private static final int port = 9000;
-    private static final int packet_size = 516;
-
-    private static final int op_read_request = 1;
-    private static final int op_write_request = 2;
-    private static final int op_data = 3;
-    private static final int op_acknowledgment = 4;
-    private static final int op_error = 5;
-
-    public static void main(String[] args) {
-        if (args.length != 3) {
-            System.err.println("Usage: java TFTPUDPClient <serverIP> <get|put> <filename>");
-            return;
-        }
-
-        String serverIP = args[0];
-        String command = args[1];
-        String fileName = args[2];
-
-        try {
-            if ("get".equals(command)) {
-                receiveFile(serverIP, fileName);
-            } else if ("put".equals(command)) {
-                sendFile(serverIP, fileName);
-            } else {
-                System.err.println("Unknown command: " + command);
-            }
-        } catch (IOException e) {
-            System.err.println("I/O Error: " + e.getMessage());
-        }
-    }
-
-    private static void receiveFile(String serverIP, String fileName) throws IOException {
-        DatagramSocket socket = new DatagramSocket();
-        socket.setSoTimeout(3000); // 3 seconds for timeouts
-        InetAddress serverAddress = InetAddress.getByName(serverIP);
-
-        byte[] rrqPacket = createRequest(op_read_request, fileName);
-        socket.send(new DatagramPacket(rrqPacket, rrqPacket.length, serverAddress, port));
-
-        try (FileOutputStream fos = new FileOutputStream(fileName)) {
-            int expectedBlock = 1;
-            while (true) {
-                DatagramPacket incoming = new DatagramPacket(new byte[packet_size], packet_size);
-                int attempts = 0;
-                boolean gotData = false;
-                while (!gotData && attempts < 4) { // retry attemptr
-                    try {
-                        socket.receive(incoming);
-                        gotData = true;
-                    } catch (SocketTimeoutException ex) {
-                        attempts++;
-                        socket.send(new DatagramPacket(rrqPacket, rrqPacket.length, serverAddress, port));
-                    }
-                }
-                if (!gotData) break; // stop
-
-                int opcode = getOpcode(incoming.getData());
-                if (opcode == op_data) {
-                    int blockNum = getBlockNumber(incoming.getData());
-                    if (blockNum == expectedBlock) {
-                        fos.write(incoming.getData(), 4, incoming.getLength() - 4);
-                        sendAck(socket, incoming.getAddress(), incoming.getPort(), blockNum);
-                        if (incoming.getLength() < packet_size) {
-                            break;
-                        }
-                        expectedBlock++;
-                    }
-                } else if (opcode == op_error) {
-                    printError(incoming.getData());
-                    break;
-                } else {
-                    System.err.println("Unexpected opcode: " + opcode);
-                }
-            }
-        } finally {
-            socket.close();
-        }
-    }
-
-    private static void sendFile(String serverIP, String fileName) throws IOException {
-        DatagramSocket socket = new DatagramSocket();
-        socket.setSoTimeout(3000);
-        InetAddress serverAddress = InetAddress.getByName(serverIP);
-
-        byte[] wrqPacket = createRequest(op_write_request, fileName);
-        socket.send(new DatagramPacket(wrqPacket, wrqPacket.length, serverAddress, port));
-
-        DatagramPacket ackPacket = new DatagramPacket(new byte[packet_size], packet_size);
-
-        int attempts = 0;
-        boolean gotAck = false;
-        while (!gotAck && attempts < 4) {
-            try {
-                socket.receive(ackPacket);
-                gotAck = true;
-            } catch (SocketTimeoutException ex) {
-                attempts++;
-                socket.send(new DatagramPacket(wrqPacket, wrqPacket.length, serverAddress, port));
-            }
-        }
-        if (!gotAck) {
-            socket.close();
-            return;
-        }
-
-        if (getOpcode(ackPacket.getData()) == op_error) {
-            printError(ackPacket.getData());
-            socket.close();
-            return;
-        }
-
-        try (FileInputStream fis = new FileInputStream(fileName)) {
-            int blockNumber = 1;
-            byte[] buffer = new byte[512];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                byte[] dataPacket = new byte[4 + bytesRead];
-                dataPacket[0] = 0;
-                dataPacket[1] = (byte) op_data;
-                dataPacket[2] = (byte) (blockNumber >> 8);
-                dataPacket[3] = (byte) blockNumber;
-                System.arraycopy(buffer, 0, dataPacket, 4, bytesRead);
-
-                DatagramPacket outData = new DatagramPacket(dataPacket, dataPacket.length, ackPacket.getAddress(), ackPacket.getPort());
-                socket.send(outData);
-
-                boolean acked = false;
-                int tries = 0;
-                while (!acked && tries < 4) {
-                    try {
-                        socket.receive(ackPacket);
-                        acked = true;
-                    } catch (SocketTimeoutException e) {
-                        tries++;
-                        socket.send(outData);
-                    }
-                }
-                if (!acked) break;
-
-                if (getOpcode(ackPacket.getData()) == op_error) {
-                    printError(ackPacket.getData());
-                    break;
-                }
-                blockNumber++;
-                if (bytesRead < 512) {
-                    break;
-                }
-            }
-        } finally {
-            socket.close();
-        }
-    }
-
-    private static byte[] createRequest(int opcode, String fileName) {
-        byte[] fileBytes = fileName.getBytes();
-        byte[] modeBytes = "octet".getBytes();
-        byte[] packet = new byte[2 + fileBytes.length + 1 + modeBytes.length + 1];
-        packet[0] = 0;
-        packet[1] = (byte) opcode;
-        System.arraycopy(fileBytes, 0, packet, 2, fileBytes.length);
-        packet[2 + fileBytes.length] = 0;
-        System.arraycopy(modeBytes, 0, packet, 3 + fileBytes.length, modeBytes.length);
-        packet[packet.length - 1] = 0;
-        return packet;
-    }
-
-    private static void sendAck(DatagramSocket socket, InetAddress address, int port, int blockNumber) throws IOException {
-        byte[] ack = {0, (byte) op_acknowledgment, (byte)(blockNumber >> 8), (byte) blockNumber};
-        socket.send(new DatagramPacket(ack, ack.length, address, port));
-    }
-
-    private static int getOpcode(byte[] data) {
-        return ((data[0] & 0xff) << 8) | (data[1] & 0xff);
-    }
-
-    private static int getBlockNumber(byte[] data) {
-        return ((data[2] & 0xff) << 8) | (data[3] & 0xff);
-    }
-
-    private static void printError(byte[] data) {
-        int i = 4;
-        StringBuilder sb = new StringBuilder();
-        while (i < data.length && data[i] != 0) {
-            sb.append((char) data[i++]);
-        }
-        System.err.println("Server error: " + sb);
-    }
-}
+package client;
+
+import core.Batch;
+import core.Packet;
+import core.Resume;
+import core.RttEstimator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TFTPUDPClient {
+
+    private static final int port = 9000;
+    private static final int packet_size = 516;
+
+    private static final int op_read_request = Packet.op_read_request;
+    private static final int op_write_request = Packet.op_write_request;
+    private static final int op_data = Packet.op_data;
+    private static final int op_acknowledgment = Packet.op_acknowledgment;
+    private static final int op_error = Packet.op_error;
+    private static final int op_option_ack = Packet.op_option_ack;
+
+    private static int requestedBlockSize = 512; // 512 is the RFC 1350 default and sends no option
+    private static int requestedWindowSize = 1;  // 1 keeps plain RFC 1350 lock-step and sends no option
+    private static boolean quiet = false;        // no progress output, for scripted and benchmark runs
+    private static int parallelTransfers = 4;    // batch mode worker threads
+    private static boolean requestMulticast = false; // ask to join an RFC 2090 multicast read
+    private static boolean resume = false;           // continue a partial download, make uploads resumable
+
+    private static final long listener_poll_millis = RttEstimator.give_up_millis / 3; // a quiet multicast listener checks in this often
+
+    private static final AtomicLong retransmissions = new AtomicLong(); // packets sent again, across all transfers
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println("Usage: java TFTPUDPClient <serverIP> <get|put> <filename> [--blksize <n>] [--windowsize <n>] [--multicast] [--resume] [--quiet]");
+            System.err.println("       java TFTPUDPClient <serverIP> batch <manifest|-> [--parallel <n>] [--blksize <n>] [--windowsize <n>] [--multicast] [--resume]");
+            return;
+        }
+
+        String serverIP = args[0];
+        String command = args[1];
+        String fileName = args[2];
+
+        for (int i = 3; i < args.length; i++) {
+            if ("--blksize".equals(args[i]) && i + 1 < args.length) {
+                requestedBlockSize = Math.max(8, Math.min(65464, Integer.parseInt(args[++i])));
+            } else if ("--windowsize".equals(args[i]) && i + 1 < args.length) {
+                requestedWindowSize = Integer.parseInt(args[++i]);
+            } else if ("--quiet".equals(args[i])) {
+                quiet = true;
+            } else if ("--multicast".equals(args[i])) {
+                requestMulticast = true;
+            } else if ("--resume".equals(args[i])) {
+                resume = true;
+            } else if ("--parallel".equals(args[i]) && i + 1 < args.length) {
+                parallelTransfers = Math.max(1, Integer.parseInt(args[++i]));
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                return;
+            }
+        }
+
+        try {
+            if ("get".equals(command)) {
+                if (!receiveFile(serverIP, fileName, fileName)) {
+                    System.exit(1);
+                }
+            } else if ("put".equals(command)) {
+                if (!sendFile(serverIP, fileName, fileName)) {
+                    System.exit(1);
+                }
+            } else if ("batch".equals(command)) {
+                if (!runBatch(serverIP, fileName)) {
+                    System.exit(1);
+                }
+            } else {
+                System.err.println("Unknown command: " + command);
+            }
+        } catch (IOException e) {
+            System.err.println("I/O Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Sets the options for transfers started through {@link #receiveFile} and {@link #sendFile}
+     * by code that embeds the client instead of running {@code main}.
+     */
+    public static void configure(int blockSize, int windowSize, boolean quietOutput) {
+        requestedBlockSize = Math.max(8, Math.min(65464, blockSize));
+        requestedWindowSize = windowSize;
+        quiet = quietOutput;
+    }
+
+    /**
+     * Number of requests, ACKs and DATA blocks this JVM has sent more than once, for load
+     * tests that run many transfers through the embedded client.
+     */
+    public static long retransmissions() {
+        return retransmissions.get();
+    }
+
+    /**
+     * Runs a manifest of gets and puts (see {@link Batch}) on parallelTransfers threads.
+     * Each thread keeps one UDPSession, so its socket, buffers and RTT estimate carry over
+     * from one file to the next.
+     *
+     * @return true if every transfer succeeded
+     */
+    private static boolean runBatch(String serverIP, String manifest) throws IOException {
+        InetAddress server = InetAddress.getByName(serverIP);
+        quiet = true; // progress lines from parallel transfers would interleave
+        try {
+            return Batch.run(Batch.parse(manifest), parallelTransfers, () -> {
+                UDPSession session = new UDPSession(server, requestedBlockSize);
+                return new Batch.Worker() {
+                    @Override
+                    public CompletableFuture<Boolean> get(String remoteName, String localName) throws IOException {
+                        return CompletableFuture.completedFuture(receiveFile(session, remoteName, localName));
+                    }
+
+                    @Override
+                    public CompletableFuture<Boolean> put(String localName, String remoteName) throws IOException {
+                        return CompletableFuture.completedFuture(sendFile(session, localName, remoteName));
+                    }
+
+                    @Override
+                    public void close() {
+                        session.close();
+                    }
+                };
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Downloads {@code fileName} from the server into {@code localName}.
+     *
+     * @return true if the whole file arrived
+     */
+    public static boolean receiveFile(String serverIP, String fileName, String localName) throws IOException {
+        try (UDPSession session = new UDPSession(InetAddress.getByName(serverIP), requestedBlockSize)) {
+            return receiveFile(session, fileName, localName);
+        }
+    }
+
+    private static boolean receiveFile(UDPSession session, String fileName, String localName) throws IOException {
+        DatagramSocket socket = session.socket;
+        RttEstimator rtt = session.rtt;
+
+        Packet control = session.control;
+        DatagramPacket outgoing = new DatagramPacket(new byte[0], 0, session.server, port);
+        long have = resume ? new File(localName).length() : 0; // a partial download to continue
+        String digest = have > 0 ? Resume.digest(Path.of(localName), have) : null;
+        byte[] rrqPacket = createRequest(control, op_read_request, fileName, 0, have, digest);
+        outgoing.setData(rrqPacket);
+        socket.send(outgoing);
+
+        TransferProgress progressReport = new TransferProgress("get " + fileName, !quiet);
+        boolean complete = false;
+        ByteBuffer recvBuffer = session.buffers.acquire();
+        try (RandomAccessFile raf = new RandomAccessFile(localName, "rw")) {
+            if (digest == null) {
+                raf.setLength(0);
+            } // else kept until the server answers; starting over overwrites it and the end trims it
+            long received = have;     // what the local file holds, until the server says where it starts
+            boolean answered = false; // the server accepted or declined the offset, so the file may be trimmed
+            int expectedBlock = 1; // full block counter; the wire carries it modulo 65536
+            int blockSize = 512;
+            int windowSize = 1;
+            int inWindow = 0;          // blocks received since the last ACK
+            boolean gapAcked = false;  // only re-ACK once per detected gap
+            boolean optionsAcked = false;
+            InetAddress transferAddress = null;
+            int transferPort = -1;
+            long ackSentAt = System.nanoTime(); // when the request or our last window ACK went out
+            boolean ackResent = false;
+            long progress = ackSentAt;
+            long deadline = ackSentAt + rtt.timeoutMillis() * 1_000_000;
+            DatagramPacket incoming = new DatagramPacket(new byte[0], 0);
+            Packet in = new Packet().wrap(recvBuffer, incoming);
+            while (true) {
+                if (!receiveUntil(socket, incoming, in, deadline)) {
+                    if (System.nanoTime() - progress > RttEstimator.give_up_millis * 1_000_000) break; // stop
+                    rtt.backoff();
+                    retransmissions.incrementAndGet();
+                    if (transferPort == -1) {
+                        outgoing.setData(rrqPacket);
+                        socket.send(outgoing);
+                    } else {
+                        sendAck(socket, outgoing, control, expectedBlock - 1);
+                    }
+                    ackResent = true;
+                    inWindow = 0;
+                    deadline = System.nanoTime() + rtt.timeoutMillis() * 1_000_000;
+                    continue;
+                }
+                if (transferPort != -1 && (incoming.getPort() != transferPort || !incoming.getAddress().equals(transferAddress))) {
+                    sendError(socket, incoming.getSocketAddress(), 5, "Unknown transfer ID.");
+                    continue;
+                }
+
+                int opcode = in.opcode();
+                if (opcode == op_option_ack) {
+                    if (expectedBlock == 1 && !optionsAcked) {
+                        Map<String, String> options = in.options(2);
+                        blockSize = Integer.parseInt(options.getOrDefault("blksize", "512"));
+                        windowSize = Integer.parseInt(options.getOrDefault("windowsize", "1"));
+                        // the kernel charges a datagram about twice its payload, so leave room for two windows
+                        socket.setReceiveBufferSize(Math.max(socket.getReceiveBufferSize(), 2 * (4 + blockSize) * windowSize));
+                        optionsAcked = true;
+                        transferAddress = incoming.getAddress();
+                        transferPort = incoming.getPort();
+                        outgoing.setSocketAddress(incoming.getSocketAddress());
+                        long transferSize = Long.parseLong(options.getOrDefault("tsize", "-1"));
+                        if (transferSize - raf.length() > new File(localName).getAbsoluteFile().getParentFile().getUsableSpace()) {
+                            sendError(socket, outgoing.getSocketAddress(), 3, "Disk full or allocation exceeded.");
+                            System.err.println("Not enough disk space for " + transferSize + " bytes");
+                            break;
+                        }
+                        answered = true;
+                        received = 0; // unless the server continues after our bytes, below
+                        if (transferSize >= 0) {
+                            raf.setLength(transferSize); // reserve the whole file up front
+                            progressReport.setTotal(transferSize);
+                        }
+                        if (options.containsKey("offset")) { // the server checked our bytes and continues after them
+                            received = Long.parseLong(options.get("offset"));
+                            raf.seek(received);
+                            progressReport.resumeFrom(received);
+                        }
+                        if (options.containsKey("multicast")) {
+                            received = receiveMulticast(session, raf, options, incoming.getSocketAddress(), progressReport);
+                            complete = received >= 0;
+                            received = Math.max(received, 0);
+                            break;
+                        }
+                        if (!ackResent) {
+                            rtt.sample(System.nanoTime() - ackSentAt);
+                        }
+                        sendAck(socket, outgoing, control, 0);
+                        ackSentAt = System.nanoTime();
+                        ackResent = false;
+                        progress = ackSentAt;
+                        deadline = ackSentAt + rtt.timeoutMillis() * 1_000_000;
+                    } else if (expectedBlock == 1) {
+                        retransmissions.incrementAndGet();
+                        sendAck(socket, outgoing, control, 0); // our ACK of the OACK was lost
+                    }
+                } else if (opcode == op_data) {
+                    int blockNum = in.blockNumber();
+                    if (transferPort == -1) {
+                        if (blockNum != 1) {
+                            continue; // not our transfer, e.g. a late block from the last one on this socket
+                        }
+                        transferAddress = incoming.getAddress();
+                        transferPort = incoming.getPort();
+                        outgoing.setSocketAddress(incoming.getSocketAddress());
+                        answered = true;
+                        received = 0; // no OACK: the server ignored our options and starts over
+                    }
+                    if (blockNum == (expectedBlock & 0xffff)) {
+                        long now = System.nanoTime();
+                        if (inWindow == 0 && !ackResent) {
+                            rtt.sample(now - ackSentAt); // first block after our ACK closes a round trip
+                        }
+                        progress = now;
+                        deadline = now + rtt.timeoutMillis() * 1_000_000;
+                        gapAcked = false;
+                        raf.write(recvBuffer.array(), Packet.header_size, in.payloadLength());
+                        received += in.payloadLength();
+                        progressReport.update(received);
+                        inWindow++;
+                        if (in.payloadLength() < blockSize) {
+                            sendAck(socket, outgoing, control, blockNum);
+                            progressReport.finish();
+                            complete = true;
+                            dally(socket, incoming, in, outgoing, control, blockNum, rtt);
+                            break;
+                        }
+                        if (inWindow == windowSize) {
+                            sendAck(socket, outgoing, control, blockNum);
+                            ackSentAt = System.nanoTime();
+                            ackResent = false;
+                            inWindow = 0;
+                        }
+                        expectedBlock++;
+                    } else if (expectedBlock > 1 && Packet.unwrapBlock(blockNum, expectedBlock) < expectedBlock) {
+                        // a block we already have, resent after the server rewound; answering it
+                        // would look like a gap and rewind the server again, block after block
+                    } else if (optionsAcked || expectedBlock > 1) {
+                        if (!gapAcked) {
+                            retransmissions.incrementAndGet();
+                            sendAck(socket, outgoing, control, expectedBlock - 1);
+                            gapAcked = true;
+                        }
+                        inWindow = 0;
+                    }
+                } else if (opcode == op_error) {
+                    printError(in);
+                    break;
+                } else if (transferPort != -1) { // before that it may be left over from an earlier transfer
+                    System.err.println("Unexpected opcode: " + opcode);
+                }
+            }
+            if (answered) {
+                raf.setLength(received); // drop any unused reservation
+            }
+        } finally {
+            session.buffers.release(recvBuffer);
+        }
+        return complete;
+    }
+
+    /**
+     * RFC 2090 read, entered once the server's OACK carries the multicast option. Blocks come
+     * from the group and, when the server sends us one alone, from our own socket, in any
+     * order, and are written in place. Only the master ACKs, always the last block it holds
+     * in sequence, which the server answers with the next one; the others listen until they
+     * have the whole file or the server makes them master. A quiet listener ACKs now and then
+     * so the server confirms it is still queued, which tells waiting apart from a dead server.
+     *
+     * @return the bytes received, or -1 if the transfer failed
+     */
+    private static long receiveMulticast(UDPSession session, RandomAccessFile raf, Map<String, String> options,
+                                         SocketAddress server, TransferProgress progressReport) throws IOException {
+        String[] multicast = options.get("multicast").split(",", -1); // address,port,master
+        InetAddress group = InetAddress.getByName(multicast[0]);
+        boolean master = "1".equals(multicast[2]);
+        int blockSize = Integer.parseInt(options.getOrDefault("blksize", "512"));
+        DatagramSocket socket = session.socket;
+        RttEstimator rtt = session.rtt;
+        DatagramPacket outgoing = new DatagramPacket(new byte[0], 0, server);
+        FileChannel target = raf.getChannel();
+
+        BlockingQueue<DatagramPacket> arrivals = new LinkedBlockingQueue<>();
+        AtomicBoolean listening = new AtomicBoolean(true);
+        MulticastSocket listener = new MulticastSocket(Integer.parseInt(multicast[1])); // closed early below, so not a resource
+        try {
+            listener.joinGroup(new InetSocketAddress(group, 0), interfaceTowards(session.server));
+            listener.setReceiveBufferSize(Math.max(listener.getReceiveBufferSize(), 64 * (4 + blockSize)));
+            Thread[] readers = {forward(listener, arrivals, listening, blockSize), forward(socket, arrivals, listening, blockSize)};
+            try {
+                BitSet have = new BitSet();
+                int inSequence = 0;  // highest block held along with every block before it
+                int finalBlock = -1; // the short block, once it arrives
+                long received = 0;
+                long ackSentAt = System.nanoTime();
+                boolean ackResent = false;
+                long progress = ackSentAt;
+                long deadline = ackSentAt;
+                if (master) {
+                    sendAck(socket, outgoing, session.control, 0);
+                    deadline += rtt.timeoutMillis() * 1_000_000;
+                } else {
+                    deadline += listener_poll_millis * 1_000_000;
+                }
+                Packet in = new Packet();
+
+                while (finalBlock == -1 || inSequence != finalBlock) {
+                    DatagramPacket packet = arrivals.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    long now = System.nanoTime();
+                    if (packet == null) {
+                        if (now - progress > RttEstimator.give_up_millis * 1_000_000) {
+                            return -1;
+                        }
+                        if (master) {
+                            rtt.backoff();
+                            retransmissions.incrementAndGet();
+                            ackResent = true;
+                        }
+                        sendAck(socket, outgoing, session.control, inSequence);
+                        deadline = now + (master ? rtt.timeoutMillis() : listener_poll_millis) * 1_000_000;
+                        continue;
+                    }
+                    if (!packet.getSocketAddress().equals(server)) {
+                        continue; // another group's traffic, or a stray
+                    }
+
+                    in.wrap(ByteBuffer.wrap(packet.getData(), 0, packet.getLength()));
+                    int opcode = in.opcode();
+                    if (opcode == op_data) {
+                        int block = in.blockNumber(); // the server keeps multicast files below 65536 blocks
+                        int length = in.payloadLength();
+                        progress = now;
+                        if (block > 0 && !have.get(block)) {
+                            target.write(ByteBuffer.wrap(packet.getData(), Packet.header_size, length), (long) (block - 1) * blockSize);
+                            have.set(block);
+                            received += length;
+                            progressReport.update(received);
+                            if (length < blockSize) {
+                                finalBlock = block;
+                            }
+                        }
+                        int before = inSequence;
+                        inSequence = have.nextClearBit(inSequence + 1) - 1;
+                        if (master && inSequence > before) {
+                            if (!ackResent) {
+                                rtt.sample(now - ackSentAt);
+                            }
+                            sendAck(socket, outgoing, session.control, inSequence);
+                            ackSentAt = now;
+                            ackResent = false;
+                            deadline = now + rtt.timeoutMillis() * 1_000_000;
+                        } else if (!master) {
+                            deadline = now + listener_poll_millis * 1_000_000;
+                        }
+                    } else if (opcode == op_option_ack) {
+                        progress = now;
+                        master = in.options(2).getOrDefault("multicast", ",,0").endsWith(",1");
+                        if (master) {
+                            sendAck(socket, outgoing, session.control, inSequence);
+                            ackSentAt = now;
+                            ackResent = false;
+                            deadline = now + rtt.timeoutMillis() * 1_000_000;
+                        } else {
+                            deadline = now + listener_poll_millis * 1_000_000;
+                        }
+                    } else if (opcode == op_error) {
+                        printError(in);
+                        return -1;
+                    }
+                }
+
+                if (!master) {
+                    sendAck(socket, outgoing, session.control, finalBlock); // lets the server drop us from the queue
+                }
+                progressReport.finish();
+                // linger in case that ACK is lost and the server makes us master to find out
+                long linger = System.nanoTime() + 2 * rtt.timeoutMillis() * 1_000_000;
+                DatagramPacket packet;
+                while ((packet = arrivals.poll(Math.max(0, linger - System.nanoTime()), TimeUnit.NANOSECONDS)) != null) {
+                    in.wrap(ByteBuffer.wrap(packet.getData(), 0, packet.getLength()));
+                    if (in.opcode() == op_option_ack && packet.getSocketAddress().equals(server)) {
+                        retransmissions.incrementAndGet();
+                        sendAck(socket, outgoing, session.control, finalBlock);
+                    }
+                }
+                return received;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            } finally {
+                listening.set(false);
+                listener.close(); // unblocks its reader
+                for (Thread reader : readers) {
+                    try {
+                        reader.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        } finally {
+            listener.close(); // in case joining the group failed
+        }
+    }
+
+    /**
+     * Copies the datagrams a socket receives into {@code arrivals} until {@code listening}
+     * is cleared (checked every 100 ms) or the socket is closed.
+     */
+    private static Thread forward(DatagramSocket socket, BlockingQueue<DatagramPacket> arrivals,
+                                  AtomicBoolean listening, int blockSize) {
+        return Thread.startVirtualThread(() -> {
+            try {
+                socket.setSoTimeout(100);
+                while (listening.get()) {
+                    DatagramPacket packet = new DatagramPacket(new byte[Packet.header_size + blockSize], Packet.header_size + blockSize);
+                    try {
+                        socket.receive(packet);
+                        arrivals.add(packet);
+                    } catch (SocketTimeoutException ignored) {
+                    }
+                }
+            } catch (IOException e) {
+                // closed under us: the transfer is over
+            }
+        });
+    }
+
+    /**
+     * The local interface that routes to the server, where its multicast group is joined.
+     */
+    private static NetworkInterface interfaceTowards(InetAddress server) throws IOException {
+        try (DatagramSocket probe = new DatagramSocket()) {
+            probe.connect(server, port);
+            return NetworkInterface.getByInetAddress(probe.getLocalAddress());
+        }
+    }
+
+    /**
+     * Uploads {@code localName} to the server as {@code fileName}.
+     *
+     * @return true if the server acknowledged the whole file
+     */
+    public static boolean sendFile(String serverIP, String localName, String fileName) throws IOException {
+        try (UDPSession session = new UDPSession(InetAddress.getByName(serverIP), requestedBlockSize)) {
+            return sendFile(session, localName, fileName);
+        }
+    }
+
+    private static boolean sendFile(UDPSession session, String localName, String fileName) throws IOException {
+        DatagramSocket socket = session.socket;
+        RttEstimator rtt = session.rtt;
+
+        DatagramPacket outgoing = new DatagramPacket(new byte[0], 0, session.server, port);
+        long size = new File(localName).length();
+        String digest = resume ? Resume.digest(Path.of(localName), size) : null;
+        byte[] wrqPacket = createRequest(session.control, op_write_request, fileName, size, 0, digest);
+        DatagramPacket ackPacket = new DatagramPacket(new byte[0], 0);
+        ByteBuffer ackBuffer = session.buffers.acquire();
+        Packet in = new Packet().wrap(ackBuffer, ackPacket);
+
+        try {
+            long started = System.nanoTime();
+            boolean retransmitted = false;
+            boolean gotAck = false;
+            while (!gotAck) {
+                outgoing.setData(wrqPacket);
+                socket.send(outgoing);
+                long sentAt = System.nanoTime();
+                long deadline = sentAt + rtt.timeoutMillis() * 1_000_000;
+                while ((gotAck = receiveUntil(socket, ackPacket, in, deadline)) && !isFirstReply(in)) {
+                    // a late packet from an earlier transfer on this socket
+                }
+                if (gotAck) {
+                    if (!retransmitted) {
+                        rtt.sample(System.nanoTime() - sentAt);
+                    }
+                } else if (System.nanoTime() - started > RttEstimator.give_up_millis * 1_000_000) {
+                    return false;
+                } else {
+                    rtt.backoff();
+                    retransmitted = true;
+                    retransmissions.incrementAndGet();
+                }
+            }
+
+            int opcode = in.opcode();
+            if (opcode == op_error) {
+                printError(in);
+                return false;
+            }
+
+            int blockSize = 512;
+            int windowSize = 1;
+            long offset = 0; // bytes the server kept from an earlier attempt
+            if (opcode == op_option_ack) {
+                Map<String, String> options = in.options(2);
+                blockSize = Math.min(Integer.parseInt(options.getOrDefault("blksize", "512")),
+                        session.buffers.bufferSize() - Packet.header_size);
+                windowSize = Integer.parseInt(options.getOrDefault("windowsize", "1"));
+                offset = Math.clamp(Long.parseLong(options.getOrDefault("offset", "0")), 0, size);
+            }
+            outgoing.setSocketAddress(ackPacket.getSocketAddress());
+
+            ByteBuffer[] window = session.buffers.acquire(windowSize);
+            try (FileInputStream fis = new FileInputStream(localName)) {
+                fis.skipNBytes(offset);
+                TransferProgress progressReport = new TransferProgress("put " + fileName, !quiet);
+                progressReport.setTotal(size);
+                progressReport.resumeFrom(offset);
+                if (!sendWindowed(fis, socket, outgoing, ackPacket, in, window, blockSize, offset, rtt, progressReport)) {
+                    return false;
+                }
+                progressReport.finish();
+                return true;
+            } finally {
+                for (ByteBuffer slot : window) {
+                    session.buffers.release(slot);
+                }
+            }
+        } finally {
+            session.buffers.release(ackBuffer);
+        }
+    }
+
+    /**
+     * The only replies a WRQ can get: an OACK, ACK 0 or an ERROR.
+     */
+    private static boolean isFirstReply(Packet in) {
+        int opcode = in.opcode();
+        return opcode == op_option_ack || opcode == op_error || (opcode == op_acknowledgment && in.blockNumber() == 0);
+    }
+
+    /**
+     * Streams DATA blocks keeping up to windowSize of them unacknowledged. ACKs are
+     * cumulative and only ACKs for blocks in flight move the window; a timeout or the
+     * first ACK short of the last block sent rewinds transmission to the block after the
+     * last one acknowledged. Further duplicates of that ACK are ignored, so late
+     * duplicates never trigger extra sends.
+     */
+    private static boolean sendWindowed(InputStream fis, DatagramSocket socket, DatagramPacket outgoing,
+                                        DatagramPacket ackPacket, Packet in, ByteBuffer[] window, int blockSize,
+                                        long offset, RttEstimator rtt, TransferProgress progressReport) throws IOException {
+        int windowSize = window.length; // each slot keeps its encoded packet for resends
+        long[] sentAt = new long[windowSize];
+        boolean[] resent = new boolean[windowSize];
+        int lastAcked = 0;   // highest block the server has acknowledged
+        int nextBlock = 1;   // next block to put on the wire
+        int lastRead = 0;    // highest block loaded from the file
+        int finalBlock = -1; // the short block that ends the transfer, once known
+        int rewoundAt = -1;  // the ACK that last caused a rewind
+        long progress = System.nanoTime();
+        long deadline = 0;
+        Packet out = new Packet();
+
+        while (lastAcked != finalBlock) {
+            while (nextBlock <= lastAcked + windowSize && (finalBlock == -1 || nextBlock <= finalBlock)) {
+                int index = (nextBlock - 1) % windowSize;
+                out.wrap(window[index]);
+                if (nextBlock > lastRead) {
+                    int bytesRead = fis.readNBytes(window[index].array(), Packet.header_size, blockSize);
+                    out.data(nextBlock, bytesRead);
+                    lastRead = nextBlock;
+                    resent[index] = false;
+                    if (bytesRead < blockSize) {
+                        finalBlock = nextBlock;
+                    }
+                } else {
+                    resent[index] = true;
+                    retransmissions.incrementAndGet();
+                }
+                socket.send(out.fill(outgoing));
+                sentAt[index] = System.nanoTime();
+                deadline = sentAt[index] + rtt.timeoutMillis() * 1_000_000;
+                nextBlock++;
+            }
+
+            if (!receiveUntil(socket, ackPacket, in, deadline)) {
+                if (System.nanoTime() - progress > RttEstimator.give_up_millis * 1_000_000) return false;
+                rtt.backoff();
+                nextBlock = lastAcked + 1;
+                rewoundAt = lastAcked;
+                continue;
+            }
+            if (ackPacket.getPort() != outgoing.getPort() || !ackPacket.getAddress().equals(outgoing.getAddress())) {
+                sendError(socket, ackPacket.getSocketAddress(), 5, "Unknown transfer ID.");
+                continue;
+            }
+
+            int opcode = in.opcode();
+            if (opcode == op_error) {
+                printError(in);
+                return false;
+            }
+            if (opcode != op_acknowledgment) {
+                continue;
+            }
+            int block = Packet.unwrapBlock(in.blockNumber(), lastAcked);
+            if (block > lastAcked && block < nextBlock) {
+                int index = (block - 1) % windowSize;
+                long now = System.nanoTime();
+                if (!resent[index]) {
+                    rtt.sample(now - sentAt[index]);
+                }
+                lastAcked = block;
+                progress = now;
+                deadline = now + rtt.timeoutMillis() * 1_000_000;
+                progressReport.update(offset + (long) (lastAcked - 1) * blockSize + (window[index].limit() - Packet.header_size));
+            }
+            if (windowSize > 1 && block == lastAcked && block < nextBlock - 1 && rewoundAt != block) {
+                nextBlock = lastAcked + 1; // the server saw a gap, resend from there once
+                rewoundAt = block;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lingers after the final ACK so a retransmitted last block (our ACK was lost)
+     * is acknowledged again instead of leaving the server to time out.
+     */
+    private static void dally(DatagramSocket socket, DatagramPacket incoming, Packet in, DatagramPacket outgoing,
+                              Packet control, int finalBlock, RttEstimator rtt) throws IOException {
+        long deadline = System.nanoTime() + 2 * rtt.timeoutMillis() * 1_000_000;
+        while (receiveUntil(socket, incoming, in, deadline)) {
+            if (in.opcode() == op_data && in.blockNumber() == (finalBlock & 0xffff)
+                    && incoming.getPort() == outgoing.getPort() && incoming.getAddress().equals(outgoing.getAddress())) {
+                retransmissions.incrementAndGet();
+                sendAck(socket, outgoing, control, finalBlock);
+            }
+        }
+    }
+
+    /**
+     * Receives one packet into {@code in} unless the deadline (System.nanoTime based) passes first.
+     */
+    private static boolean receiveUntil(DatagramSocket socket, DatagramPacket incoming, Packet in, long deadline) throws IOException {
+        long remaining = (deadline - System.nanoTime()) / 1_000_000;
+        if (remaining <= 0) {
+            return false;
+        }
+        socket.setSoTimeout((int) remaining);
+        try {
+            socket.receive(incoming);
+            in.received(incoming.getLength());
+            return true;
+        } catch (SocketTimeoutException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Builds an RRQ/WRQ. The tsize option is always sent: 0 on a read asks the server
+     * for the file size, on a write it announces the size of the upload. With a digest
+     * (see {@link Resume}) a read asks to continue from {@code offset}, and a write names
+     * the content so the server can continue a partial it kept.
+     */
+    private static byte[] createRequest(Packet packet, int opcode, String fileName, long transferSize,
+                                        long offset, String digest) {
+        Map<String, String> options = new LinkedHashMap<>();
+        if (requestedBlockSize != 512) {
+            options.put("blksize", String.valueOf(requestedBlockSize));
+        }
+        options.put("tsize", String.valueOf(transferSize));
+        if (requestedWindowSize > 1) {
+            options.put("windowsize", String.valueOf(requestedWindowSize));
+        }
+        if (requestMulticast && opcode == op_read_request) {
+            options.put("multicast", "");
+        }
+        if (digest != null) {
+            if (opcode == op_read_request) {
+                options.put("offset", String.valueOf(offset));
+            }
+            options.put("digest", digest);
+        }
+        return packet.request(opcode, fileName, options).toByteArray();
+    }
+
+    private static void sendAck(DatagramSocket socket, DatagramPacket outgoing, Packet control, int blockNumber) throws IOException {
+        socket.send(control.ack(blockNumber).fill(outgoing));
+    }
+
+    private static void sendError(DatagramSocket socket, SocketAddress target, int errorCode,
+                                  String errorMsg) throws IOException {
+        Packet error = new Packet().wrap(ByteBuffer.allocate(packet_size)).error(errorCode, errorMsg);
+        socket.send(new DatagramPacket(error.buffer().array(), error.length(), target));
+    }
+
+    private static void printError(Packet error) {
+        System.err.println("Server error: " + error.errorMessage());
+    }
+}
@@ -0,0 +1,56 @@
+package client;
+
+/**
+ * Prints transfer progress to the console at most twice a second, and a throughput
+ * summary at the end. The percentage is only shown once the total size is known.
+ */
+final class TransferProgress {
+
+    private static final long report_interval_nanos = 500_000_000L;
+
+    private final String label;
+    private final boolean enabled;
+    private final long started = System.nanoTime();
+    private long lastReport = started;
+    private long total = -1;
+    private long done;
+    private long resumedFrom; // bytes already there before this transfer, left out of the rate
+
+    TransferProgress(String label, boolean enabled) {
+        this.label = label;
+        this.enabled = enabled;
+    }
+
+    void setTotal(long total) {
+        this.total = total;
+    }
+
+    void resumeFrom(long bytes) {
+        resumedFrom = done = bytes;
+    }
+
+    void update(long bytesDone) {
+        done = bytesDone;
+        long now = System.nanoTime();
+        if (enabled && now - lastReport >= report_interval_nanos) {
+            lastReport = now;
+            System.out.print("\r" + label + ": " + describe(now));
+        }
+    }
+
+    void finish() {
+        if (!enabled) {
+            return;
+        }
+        System.out.println("\r" + label + ": " + describe(System.nanoTime()));
+    }
+
+    private String describe(long now) {
+        double seconds = Math.max(1e-9, (now - started) / 1e9);
+        String rate = String.format("%.2f MB/s", (done - resumedFrom) / seconds / (1024 * 1024));
+        if (total > 0) {
+            return String.format("%d/%d bytes (%d%%) %s", done, total, done * 100 / total, rate);
+        }
+        return String.format("%d bytes %s", done, rate);
+    }
+}
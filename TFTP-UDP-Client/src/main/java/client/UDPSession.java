@@ -0,0 +1,37 @@
+package client;
+
+import core.BufferPool;
+import core.Packet;
+import core.RttEstimator;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+/**
+ * What consecutive transfers from one thread share: the resolved server address, the
+ * socket, the packet buffers and the round-trip estimate. A single get or put uses a
+ * fresh one; a batch worker keeps one for all its files, so the lookup, the socket and
+ * the RTO warm-up are paid once. Packets still in flight from an earlier transfer on the
+ * socket are told apart by their transfer ID and block number.
+ */
+final class UDPSession implements AutoCloseable {
+
+    final InetAddress server;
+    final DatagramSocket socket;
+    final BufferPool buffers; // sized for the requested block size, which the server can only lower
+    final Packet control = new Packet().wrap(ByteBuffer.allocate(516)); // requests, ACKs and errors
+    final RttEstimator rtt = new RttEstimator();
+
+    UDPSession(InetAddress server, int blockSize) throws SocketException {
+        this.server = server;
+        this.socket = new DatagramSocket();
+        this.buffers = new BufferPool(Math.max(516, Packet.header_size + blockSize), false);
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
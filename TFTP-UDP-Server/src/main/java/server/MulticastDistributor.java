@@ -0,0 +1,344 @@
+package server;
+
+import core.Packet;
+import core.RttEstimator;
+import core.TransferMetrics;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * RFC 2090 multicast reads for the thread engine. Clients that ask for a file with the
+ * multicast option while it is already going out join that transfer, so each block leaves
+ * the server once however many clients are listening. One client at a time is the master
+ * and ACKs every block in lock-step; the others only listen. When the master has the whole
+ * file the next client in line is made master and ACKs the last block it holds in sequence.
+ * Blocks it missed by joining late go to it alone, unicast, since the rest of the group
+ * already has them; blocks past what the group has seen still go to the group.
+ * <p>
+ * Each running file gets its own group port, counted up from the configured one, and its
+ * own socket, whose port is the transfer ID the clients ACK to. Block numbers cannot roll
+ * over here (a new master's first ACK would be ambiguous), so files of 65535 blocks or more
+ * are left to unicast.
+ */
+final class MulticastDistributor {
+
+    static final int max_blocks = 0xffff;
+
+    private final InetAddress address;
+    private final int basePort;
+    private final NetworkInterface networkInterface; // null sends through the system default
+    private final TransferMetrics metrics;
+    private final Map<Key, Group> groups = new HashMap<>(); // guarded by itself
+    private final BitSet portsInUse = new BitSet();         // guarded by groups
+
+    private record Key(Path file, int blockSize) {
+    }
+
+    MulticastDistributor(InetAddress address, int basePort, NetworkInterface networkInterface, TransferMetrics metrics) {
+        this.address = address;
+        this.basePort = basePort;
+        this.networkInterface = networkInterface;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Adds the client to the running transfer of the file, starting one if there is none.
+     * Called from the request handler, which is done once this returns.
+     */
+    void join(TransferRequest transfer, SocketAddress peer) throws IOException {
+        transfer.accepted.remove("windowsize"); // RFC 2090 is lock-step
+        Key key = new Key(Path.of(transfer.fileName).toAbsolutePath().normalize(), transfer.blockSize);
+        synchronized (groups) { // held while joining, so a group cannot end between lookup and join
+            Group group = groups.get(key);
+            if (group == null) {
+                int slot = portsInUse.nextClearBit(0);
+                group = new Group(key, slot);
+                portsInUse.set(slot);
+                groups.put(key, group);
+                group.add(transfer, peer);
+                Thread.ofPlatform().name("tftp-multicast-" + (basePort + slot)).start(group);
+            } else {
+                group.add(transfer, peer);
+            }
+        }
+    }
+
+    /**
+     * One file going out to one multicast group. The loop thread owns the socket's receive
+     * side and the block buffer; membership and the master's state are guarded by the group,
+     * since handler threads add members while it runs.
+     */
+    private final class Group implements Runnable {
+
+        private final Key key;
+        private final int slot;
+        private final FileChannel source;
+        private final long size;
+        private final int finalBlock;
+        private final DatagramSocket socket;
+        private final InetSocketAddress groupAddress;
+        private final String announcement; // "address,port," ahead of the master flag in the multicast option
+        private final RttEstimator rtt = new RttEstimator(metrics);
+
+        private final Packet out = new Packet();
+        private final Packet in = new Packet();
+        private final Packet control = new Packet().wrap(ByteBuffer.allocate(516)); // errors
+        private final DatagramPacket outgoing = new DatagramPacket(new byte[0], 0);
+        private final DatagramPacket incoming = new DatagramPacket(new byte[0], 0);
+
+        private final Map<SocketAddress, Member> members = new LinkedHashMap<>(); // join order is the order of mastership
+        private Member master;
+        private int frontier;          // highest block sent to the whole group
+        private int current;           // block last sent to the master, 0 while it has only the OACK
+        private boolean currentToGroup;
+        private long sentAt;
+        private boolean resent;
+        private long progress;
+        private long deadline;
+
+        Group(Key key, int slot) throws IOException {
+            this.key = key;
+            this.slot = slot;
+            this.source = FileChannel.open(key.file(), StandardOpenOption.READ);
+            this.size = source.size();
+            this.finalBlock = (int) (size / key.blockSize()) + 1;
+            this.groupAddress = new InetSocketAddress(address, basePort + slot);
+            this.announcement = address.getHostAddress() + "," + groupAddress.getPort() + ",";
+            this.socket = new DatagramSocket();
+            if (networkInterface != null) {
+                socket.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(Packet.header_size + key.blockSize());
+            out.wrap(buffer);
+            in.wrap(ByteBuffer.allocate(516), incoming);
+        }
+
+        synchronized void add(TransferRequest transfer, SocketAddress peer) throws IOException {
+            Member member = members.get(peer);
+            if (member == null) {
+                member = new Member(peer, transfer, metrics.begin());
+                members.put(peer, member);
+            }
+            if (master == null) {
+                makeMaster(member);
+            } else {
+                offer(member); // also answers a retransmitted request
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    synchronized (groups) {
+                        synchronized (this) {
+                            if (members.isEmpty()) {
+                                groups.remove(key);
+                                portsInUse.clear(slot);
+                                return;
+                            }
+                        }
+                    }
+                    boolean received = receive();
+                    synchronized (this) {
+                        if (received) {
+                            handle();
+                        } else if (master != null && System.nanoTime() - deadline >= 0) {
+                            retransmit();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Multicast transfer failed: " + e.getMessage());
+                synchronized (groups) {
+                    synchronized (this) {
+                        members.values().forEach(member -> member.stats.end());
+                        members.clear();
+                        groups.remove(key);
+                        portsInUse.clear(slot);
+                    }
+                }
+            } finally {
+                socket.close();
+                try {
+                    source.close();
+                } catch (IOException ignored) {}
+            }
+        }
+
+        /**
+         * Waits for a packet until the master's reply is due. Reads the deadline without the
+         * lock; a master made meanwhile is at worst served one wait late.
+         */
+        private boolean receive() throws IOException {
+            long remaining;
+            synchronized (this) {
+                remaining = master == null ? rtt.timeoutMillis() : (deadline - System.nanoTime()) / 1_000_000;
+            }
+            if (remaining <= 0) {
+                return false;
+            }
+            socket.setSoTimeout((int) remaining);
+            try {
+                socket.receive(incoming);
+            } catch (SocketTimeoutException e) {
+                return false;
+            }
+            in.received(incoming.getLength());
+            return true;
+        }
+
+        private void handle() throws IOException {
+            Member member = members.get(incoming.getSocketAddress());
+            if (member == null) {
+                sendError(incoming.getSocketAddress(), 5, "Unknown transfer ID.");
+                return;
+            }
+            int opcode = in.opcode();
+            if (opcode == Packet.op_error) {
+                member.stats.failed(TransferMetrics.failure_peer_error);
+                leave(member);
+                return;
+            }
+            if (opcode != Packet.op_acknowledgment) {
+                return;
+            }
+
+            int block = in.blockNumber();
+            if (member != master) {
+                if (block == finalBlock) {
+                    member.stats.delivered(size);
+                    member.stats.completed();
+                    leave(member);
+                } else {
+                    offer(member); // a listener checking it is still queued
+                }
+                return;
+            }
+            if (block == master.acked || block > Math.max(current, frontier)) {
+                return; // a duplicate, or nothing we sent; the timer covers losses
+            }
+            long now = System.nanoTime();
+            if (!resent && block == current) {
+                rtt.sample(now - sentAt);
+            }
+            master.acked = block;
+            progress = now;
+            if (block == finalBlock) {
+                master.stats.delivered(size);
+                master.stats.completed();
+                leave(master);
+            } else {
+                send(block + 1, false);
+            }
+        }
+
+        /**
+         * The master's reply is overdue: resend what it is waiting for, or give up on it
+         * and move on to the next client.
+         */
+        private void retransmit() throws IOException {
+            if (System.nanoTime() - progress > RttEstimator.give_up_millis * 1_000_000) {
+                master.stats.failed(TransferMetrics.failure_timeout);
+                leave(master);
+                return;
+            }
+            rtt.backoff();
+            if (current == 0) {
+                offer(master);
+                resent = true;
+                deadline = System.nanoTime() + rtt.timeoutMillis() * 1_000_000;
+            } else {
+                send(current, true);
+            }
+        }
+
+        private void leave(Member member) throws IOException {
+            members.remove(member.peer);
+            if (member == master) {
+                master = null;
+                Iterator<Member> next = members.values().iterator();
+                if (next.hasNext()) {
+                    makeMaster(next.next());
+                }
+            }
+        }
+
+        private void makeMaster(Member member) throws IOException {
+            master = member;
+            member.acked = -1;
+            current = 0;
+            offer(member);
+            sentAt = progress = System.nanoTime();
+            resent = false;
+            deadline = sentAt + rtt.timeoutMillis() * 1_000_000;
+        }
+
+        /**
+         * Sends a member its OACK, which tells it the group and whether it is master.
+         */
+        private void offer(Member member) throws IOException {
+            member.transfer.accepted.put("multicast", announcement + (member == master ? "1" : "0"));
+            byte[] oack = member.transfer.createOptionAck();
+            socket.send(new DatagramPacket(oack, oack.length, member.peer));
+        }
+
+        /**
+         * Sends a block to the group if the group has not had it yet, otherwise to the master alone.
+         */
+        private void send(int block, boolean retransmission) throws IOException {
+            if (!retransmission) {
+                currentToGroup = block > frontier;
+                frontier = Math.max(frontier, block);
+            }
+            ByteBuffer buffer = out.buffer().clear().position(Packet.header_size);
+            long position = (long) (block - 1) * key.blockSize();
+            int length = 0;
+            while (buffer.hasRemaining()) {
+                int read = source.read(buffer, position + length);
+                if (read <= 0) {
+                    break;
+                }
+                length += read;
+            }
+            out.data(block, length);
+            outgoing.setSocketAddress(currentToGroup ? groupAddress : master.peer);
+            socket.send(out.fill(outgoing));
+            master.stats.sent(out.payloadLength(), retransmission);
+
+            current = block;
+            sentAt = System.nanoTime();
+            resent = retransmission;
+            deadline = sentAt + rtt.timeoutMillis() * 1_000_000;
+        }
+
+        private void sendError(SocketAddress target, int errorCode, String errorMsg) throws IOException {
+            metrics.errorSent(errorCode);
+            control.error(errorCode, errorMsg);
+            socket.send(new DatagramPacket(control.buffer().array(), control.length(), target));
+        }
+    }
+
+    private static final class Member {
+        final SocketAddress peer;
+        final TransferRequest transfer;
+        final TransferMetrics.Transfer stats;
+        int acked = -1; // last block this member ACKed as master, -1 until it does
+
+        Member(SocketAddress peer, TransferRequest transfer, TransferMetrics.Transfer stats) {
+            this.peer = peer;
+            this.transfer = transfer;
+            this.stats = stats;
+        }
+    }
+}
@@ -1,158 +1,568 @@
-package server;
-
-import java.io.*;
-import java.net.*;
-
-public class TFTPUDPServer {
-
-    private static final int port = 9000;
-    private static final int packet_size = 516;
-
-    public static void main(String[] args) {
-        try (DatagramSocket socket = new DatagramSocket(port)) {
-            System.out.println("TFTP Server is listening on port " + port);
-
-            while (true) {
-                DatagramPacket request = new DatagramPacket(new byte[packet_size], packet_size);
-                socket.receive(request);
-                new Thread(new RequestHandler(request)).start();
-            }
-        } catch (IOException e) {
-            System.err.println("Server encountered an error: " + e.getMessage());
-        }
-    }
-
-    private static class RequestHandler implements Runnable {
-
-        private static final int op_read_request = 1;
-        private static final int op_write_request = 2;
-        private static final int op_data = 3;
-        private static final int op_acknowledgment = 4;
-        private static final int op_error = 5;
-
-        private DatagramPacket request;
-
-        RequestHandler(DatagramPacket request) {
-            this.request = request;
-        }
-
-        @Override
-        public void run() {
-            try (DatagramSocket socket = new DatagramSocket()) {
-                socket.setSoTimeout(3000); // 3 seconds
-                byte[] data = request.getData();
-                int opcode = ((data[0] & 0xff) << 8) | (data[1] & 0xff);
-
-                int index = 2;
-                StringBuilder fileName = new StringBuilder();
-                while (data[index] != 0) {
-                    fileName.append((char) data[index++]);
-                }
-
-                if (opcode == op_read_request) {
-                    handleReadRequest(fileName.toString(), request, socket);
-                } else if (opcode == op_write_request) {
-                    handleWriteRequest(fileName.toString(), request, socket);
-                } else {
-                    sendError(socket, request, "Invalid request.");
-                }
-            } catch (IOException e) {
-                System.err.println("Request handling failed: " + e.getMessage());
-            }
-        }
-
-        private void handleReadRequest(String fileName, DatagramPacket request, DatagramSocket socket) throws IOException {
-            File file = new File(fileName);
-            if (!file.exists()) {
-                sendError(socket, request, "File not found.");
-                return;
-            }
-
-            try (FileInputStream fis = new FileInputStream(file)) {
-                int blockNumber = 1;
-                byte[] buffer = new byte[512];
-                int bytesRead;
-                do {
-                    bytesRead = fis.read(buffer);
-                    byte[] sendBuffer = new byte[4 + (bytesRead > 0 ? bytesRead : 0)];
-                    sendBuffer[0] = 0;
-                    sendBuffer[1] = (byte) op_data;
-                    sendBuffer[2] = (byte) (blockNumber >> 8);
-                    sendBuffer[3] = (byte) (blockNumber & 0xff);
-                    if (bytesRead > 0) {
-                        System.arraycopy(buffer, 0, sendBuffer, 4, bytesRead);
-                    }
-
-                    DatagramPacket outPacket = new DatagramPacket(sendBuffer, sendBuffer.length, request.getAddress(), request.getPort());
-                    socket.send(outPacket);
-
-                    int attempts = 0;
-                    boolean acked = false;
-                    while (!acked && attempts < 4) {
-                        try {
-                            DatagramPacket ackPacket = new DatagramPacket(new byte[packet_size], packet_size);
-                            socket.receive(ackPacket);
-                            acked = true;
-                        } catch (SocketTimeoutException ex) {
-                            attempts++;
-                            socket.send(outPacket);
-                        }
-                    }
-
-                    blockNumber++;
-                } while (bytesRead == 512);
-            }
-        }
-
-        private void handleWriteRequest(String fileName, DatagramPacket request, DatagramSocket socket) throws IOException {
-            try (FileOutputStream fos = new FileOutputStream(fileName)) {
-                sendAck(socket, request, 0);
-
-                int blockNumber = 1;
-                byte[] recvBuffer = new byte[packet_size];
-
-                while (true) {
-                    DatagramPacket packet = new DatagramPacket(recvBuffer, packet_size);
-                    int attempts = 0;
-                    boolean gotData = false;
-                    while (!gotData && attempts < 4) {
-                        try {
-                            socket.receive(packet);
-                            gotData = true;
-                        } catch (SocketTimeoutException ex) {
-                            attempts++;
-                            sendAck(socket, request, (blockNumber - 1));
-                        }
-                    }
-                    if (!gotData) break; // stop
-
-                    int dataLength = packet.getLength() - 4;
-                    fos.write(packet.getData(), 4, dataLength);
-                    sendAck(socket, request, blockNumber);
-
-                    if (dataLength < 512) {
-                        break;
-                    }
-                    blockNumber++;
-                }
-            }
-        }
-
-        private void sendAck(DatagramSocket socket, DatagramPacket request, int blockNumber) throws IOException {
-            byte[] ack = {0, (byte) op_acknowledgment, (byte) (blockNumber >> 8), (byte) (blockNumber & 0xff)};
-            socket.send(new DatagramPacket(ack, ack.length, request.getAddress(), request.getPort()));
-        }
-
-        private void sendError(DatagramSocket socket, DatagramPacket request, String errorMsg) throws IOException {
-            byte[] msgBytes = errorMsg.getBytes();
-            byte[] errorBuffer = new byte[4 + msgBytes.length + 1];
-            errorBuffer[0] = 0;
-            errorBuffer[1] = (byte) op_error;
-            errorBuffer[2] = 0;
-            errorBuffer[3] = 1;
-            System.arraycopy(msgBytes, 0, errorBuffer, 4, msgBytes.length);
-            errorBuffer[errorBuffer.length - 1] = 0;
-            socket.send(new DatagramPacket(errorBuffer, errorBuffer.length, request.getAddress(), request.getPort()));
-        }
-    }
-}
+package server;
+
+import core.BandwidthScheduler;
+import core.BufferPool;
+import core.FileCache;
+import core.MetricsExporter;
+import core.Packet;
+import core.RttEstimator;
+import core.TransferMetrics;
+import core.WriteBehindFile;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class TFTPUDPServer {
+
+    private static final int port = 9000;
+    private static final int packet_size = 516;
+
+    private static int maxBlockSize = 65464; // upper bound for the RFC 2348 blksize option
+    private static int maxWindowSize = 64;   // upper bound for the RFC 7440 windowsize option
+    private static FileCache fileCache = new FileCache(64L * 1024 * 1024);
+    private static long syncEveryBytes = -1; // --fsync policy for uploads, see WriteBehindFile
+    private static final TransferMetrics metrics = new TransferMetrics("udp");
+    private static MulticastDistributor multicast; // null unless --multicast is given
+    private static BandwidthScheduler scheduler;   // paces unicast reads, unlimited unless a rate is given
+    private static final long pooled_bytes = 16L * 1024 * 1024; // free buffers kept per block size
+
+    /**
+     * Thread-engine packet buffers, one pool per negotiated block size, shared by every
+     * transfer of that size. Each handler returns what it acquired when it finishes.
+     */
+    private static final Map<Integer, BufferPool> bufferPools = new ConcurrentHashMap<>();
+
+    /**
+     * Thread-engine transfers in flight, keyed by client address, port and file name. A
+     * request matching one is the client repeating itself because our first reply has not
+     * reached it yet; the running handler resends that reply on its own timer, so the
+     * duplicate is dropped instead of starting the file over from a second port. Each
+     * handler removes its entry the moment it finishes, so the table only ever holds live
+     * transfers, and those give up after RttEstimator.give_up_millis without progress.
+     */
+    private static final Map<Session, RequestHandler> sessions = new ConcurrentHashMap<>();
+
+    private record Session(SocketAddress peer, String fileName) {
+    }
+
+    public static void main(String[] args) {
+        String engine = "thread";
+        boolean virtualThreads = false;
+        int loops = Runtime.getRuntime().availableProcessors();
+        int metricsPort = 0; // no Prometheus endpoint unless asked for
+        String multicastGroup = null;
+        String multicastInterface = null;
+        long rateLimit = 0;
+        long clientRateLimit = 0;
+        int clientPrefix = 32;
+        List<BandwidthScheduler.PriorityClass> classes = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--max-blksize".equals(args[i]) && i + 1 < args.length) {
+                maxBlockSize = Math.max(8, Math.min(65464, Integer.parseInt(args[++i])));
+            } else if ("--max-windowsize".equals(args[i]) && i + 1 < args.length) {
+                maxWindowSize = Math.max(1, Math.min(32767, Integer.parseInt(args[++i])));
+            } else if ("--engine".equals(args[i]) && i + 1 < args.length) {
+                engine = args[++i];
+            } else if ("--loops".equals(args[i]) && i + 1 < args.length) {
+                loops = Math.max(1, Integer.parseInt(args[++i]));
+            } else if ("--virtual-threads".equals(args[i])) {
+                virtualThreads = true;
+            } else if ("--cache-mb".equals(args[i]) && i + 1 < args.length) {
+                fileCache = new FileCache(Math.max(0, Long.parseLong(args[++i])) * 1024 * 1024);
+            } else if ("--fsync".equals(args[i]) && i + 1 < args.length) {
+                syncEveryBytes = WriteBehindFile.parseSyncPolicy(args[++i]);
+            } else if ("--metrics-port".equals(args[i]) && i + 1 < args.length) {
+                metricsPort = Integer.parseInt(args[++i]);
+            } else if ("--multicast".equals(args[i]) && i + 1 < args.length) {
+                multicastGroup = args[++i];
+            } else if ("--multicast-if".equals(args[i]) && i + 1 < args.length) {
+                multicastInterface = args[++i];
+            } else if ("--rate-limit".equals(args[i]) && i + 1 < args.length) {
+                rateLimit = BandwidthScheduler.parseRate(args[++i]);
+            } else if ("--client-rate-limit".equals(args[i]) && i + 1 < args.length) {
+                clientRateLimit = BandwidthScheduler.parseRate(args[++i]);
+            } else if ("--client-prefix".equals(args[i]) && i + 1 < args.length) {
+                clientPrefix = Integer.parseInt(args[++i]);
+            } else if ("--class".equals(args[i]) && i + 1 < args.length) {
+                classes.add(BandwidthScheduler.PriorityClass.parse(args[++i]));
+            } else {
+                System.err.println("Usage: java TFTPUDPServer [--engine thread|nio] [--loops <n>] [--virtual-threads] [--cache-mb <n>] [--fsync none|close|<mb>] [--max-blksize <n>] [--max-windowsize <n>] [--metrics-port <n>] [--multicast <group>:<port> [--multicast-if <name>]] [--rate-limit <rate>] [--client-rate-limit <rate> [--client-prefix <bits>]] [--class <glob>=<weight>]...");
+                return;
+            }
+        }
+
+        scheduler = new BandwidthScheduler(rateLimit, clientRateLimit, clientPrefix, classes);
+
+        if (multicastGroup != null) {
+            try {
+                int colon = multicastGroup.lastIndexOf(':');
+                InetAddress group = InetAddress.getByName(multicastGroup.substring(0, colon));
+                if (!group.isMulticastAddress()) {
+                    throw new IOException(group.getHostAddress() + " is not a multicast address");
+                }
+                NetworkInterface networkInterface = multicastInterface != null ? NetworkInterface.getByName(multicastInterface) : null;
+                if (multicastInterface != null && networkInterface == null) {
+                    throw new IOException("No interface " + multicastInterface);
+                }
+                multicast = new MulticastDistributor(group, Integer.parseInt(multicastGroup.substring(colon + 1)), networkInterface, metrics);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Bad --multicast setting: " + e.getMessage());
+                return;
+            }
+        }
+
+        MetricsExporter.register(metrics, fileCache);
+        if (metricsPort > 0) {
+            try {
+                MetricsExporter.serve(metricsPort, metrics, fileCache);
+                System.out.println("Metrics at http://127.0.0.1:" + metricsPort + "/metrics");
+            } catch (IOException e) {
+                System.err.println("Metrics endpoint failed: " + e.getMessage());
+            }
+        }
+
+        if ("nio".equals(engine)) {
+            if (multicast != null) {
+                System.err.println("--multicast is only served by --engine thread; multicast requests will get unicast");
+            }
+            if (scheduler.isEnabled()) {
+                System.err.println("Rate limits are only applied by --engine thread");
+            }
+            runEventLoops(loops);
+            return;
+        }
+
+        try (DatagramSocket socket = new DatagramSocket(port)) {
+            System.out.println("TFTP Server is listening on port " + port);
+
+            Packet header = new Packet();
+            while (true) {
+                DatagramPacket request = new DatagramPacket(new byte[packet_size], packet_size);
+                socket.receive(request);
+                header.wrap(ByteBuffer.wrap(request.getData(), 0, request.getLength()));
+                Session session = null;
+                if (header.opcode() == Packet.op_read_request || header.opcode() == Packet.op_write_request) {
+                    session = new Session(request.getSocketAddress(), header.string(2));
+                }
+                RequestHandler handler = new RequestHandler(request, session);
+                if (session != null && sessions.putIfAbsent(session, handler) != null) {
+                    metrics.duplicateRequest();
+                    continue;
+                }
+                if (virtualThreads) {
+                    Thread.startVirtualThread(handler);
+                } else {
+                    new Thread(handler).start();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Server encountered an error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Serves all transfers from a fixed set of event loops instead of a thread per request.
+     * Each loop binds the server port with SO_REUSEPORT so the kernel shards clients across them.
+     */
+    private static void runEventLoops(int loops) {
+        boolean reusePort = UDPEventLoop.supportsReusePort();
+        if (!reusePort && loops > 1) {
+            System.err.println("SO_REUSEPORT is not supported here, falling back to a single event loop");
+            loops = 1;
+        }
+
+        Thread[] threads = new Thread[loops];
+        try {
+            for (int i = 0; i < loops; i++) {
+                threads[i] = new Thread(new UDPEventLoop(port, reusePort, maxBlockSize, maxWindowSize, fileCache, syncEveryBytes, metrics), "tftp-loop-" + i);
+            }
+        } catch (IOException e) {
+            System.err.println("Server encountered an error: " + e.getMessage());
+            return;
+        }
+        System.out.println("TFTP Server is listening on port " + port + " with " + loops + " event loop(s)");
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static class RequestHandler implements Runnable {
+
+        private static final int op_read_request = Packet.op_read_request;
+        private static final int op_write_request = Packet.op_write_request;
+        private static final int op_data = Packet.op_data;
+        private static final int op_acknowledgment = Packet.op_acknowledgment;
+        private static final int op_error = Packet.op_error;
+
+        private DatagramPacket request;
+        private final Session session; // null for a packet that is not a request
+        private int blockSize = 512; // payload bytes per DATA packet
+        private int windowSize = 1;  // blocks in flight before an ACK is required
+        private final RttEstimator rtt = new RttEstimator(metrics);
+        private TransferMetrics.Transfer stats; // set once the request is accepted
+
+        // one set of buffers and datagrams per transfer, reused for every block
+        private BufferPool buffers;
+        private final List<ByteBuffer> held = new ArrayList<>(); // acquired from buffers, released by run
+        private final Packet out = new Packet();
+        private final Packet in = new Packet();
+        private final Packet control = new Packet().wrap(ByteBuffer.allocate(packet_size)); // ACKs and errors
+        private DatagramPacket outgoing;
+        private final DatagramPacket incoming = new DatagramPacket(new byte[0], 0);
+
+        RequestHandler(DatagramPacket request, Session session) {
+            this.request = request;
+            this.session = session;
+        }
+
+        @Override
+        public void run() {
+            try (DatagramSocket socket = new DatagramSocket()) {
+                ByteBuffer requestBytes = ByteBuffer.wrap(request.getData(), request.getOffset(), request.getLength()).slice();
+                TransferRequest transfer = TransferRequest.parse(in.wrap(requestBytes));
+                transfer.negotiate(maxBlockSize, maxWindowSize);
+                blockSize = transfer.blockSize;
+                windowSize = transfer.windowSize;
+                buffers = bufferPools.computeIfAbsent(Packet.header_size + blockSize,
+                        size -> new BufferPool(size, false, (int) Math.max(64, pooled_bytes / size)));
+                outgoing = new DatagramPacket(new byte[0], 0, request.getSocketAddress());
+
+                if (transfer.opcode == op_read_request) {
+                    handleReadRequest(transfer, socket);
+                } else if (transfer.opcode == op_write_request) {
+                    handleWriteRequest(transfer, socket);
+                } else {
+                    sendError(socket, request.getSocketAddress(), 1, "Invalid request.");
+                }
+            } catch (IOException e) {
+                System.err.println("Request handling failed: " + e.getMessage());
+            } finally {
+                if (session != null) {
+                    sessions.remove(session, this);
+                }
+                if (buffers != null) {
+                    held.forEach(buffers::release);
+                }
+            }
+        }
+
+        private ByteBuffer acquire() {
+            ByteBuffer buffer = buffers.acquire();
+            held.add(buffer);
+            return buffer;
+        }
+
+        private void handleReadRequest(TransferRequest transfer, DatagramSocket socket) throws IOException {
+            File file = new File(transfer.fileName);
+            if (!file.exists()) {
+                sendError(socket, request.getSocketAddress(), 1, "File not found.");
+                return;
+            }
+            transfer.offerTransferSize(file.length());
+            if (multicast != null && transfer.wantsMulticast() && file.length() / blockSize < MulticastDistributor.max_blocks) {
+                multicast.join(transfer, request.getSocketAddress());
+                return;
+            }
+            long offset = transfer.offerResume(file.toPath()); // after the multicast check: a group always starts at block 1
+
+            stats = metrics.begin();
+            try (InputStream fis = fileCache.open(file.toPath());
+                 BandwidthScheduler.Flow flow = scheduler.open(request.getAddress(), transfer.fileName)) {
+                fis.skipNBytes(offset);
+                in.wrap(acquire(), incoming);
+                if (transfer.hasOptions() && !sendOptionAck(socket, transfer)) {
+                    return;
+                }
+                sendWindowed(fis, socket, flow);
+            } finally {
+                stats.end();
+            }
+        }
+
+        /**
+         * Sends the OACK for a read request and waits for the client to confirm it with ACK 0.
+         */
+        private boolean sendOptionAck(DatagramSocket socket, TransferRequest transfer) throws IOException {
+            byte[] oack = transfer.createOptionAck();
+            long started = System.nanoTime();
+            boolean retransmitted = false;
+
+            while (true) {
+                socket.send(fill(oack));
+                long sentAt = System.nanoTime();
+                long deadline = sentAt + rtt.timeoutMillis() * 1_000_000;
+                while (receiveFromPeer(socket, deadline)) {
+                    if (in.opcode() == op_error) {
+                        stats.failed(TransferMetrics.failure_peer_error);
+                        return false;
+                    }
+                    if (in.opcode() == op_acknowledgment && in.blockNumber() == 0) {
+                        if (!retransmitted) {
+                            rtt.sample(System.nanoTime() - sentAt);
+                        }
+                        return true;
+                    }
+                }
+                if (System.nanoTime() - started > RttEstimator.give_up_millis * 1_000_000) {
+                    stats.failed(TransferMetrics.failure_timeout);
+                    return false;
+                }
+                rtt.backoff();
+                retransmitted = true;
+            }
+        }
+
+        /**
+         * Streams the file as DATA blocks, keeping up to windowSize blocks unacknowledged.
+         * ACKs are cumulative and only ACKs for blocks in flight move the window; a timeout
+         * or the first ACK short of the last block sent rewinds transmission to the block
+         * after the last one acknowledged. Any further duplicate of that ACK is ignored, so
+         * late duplicates never trigger extra sends. Each block, resends included, waits for
+         * its bytes from the flow, which spaces a rate-limited window out evenly rather than
+         * holding it back whole: a client times out on a long gap between blocks.
+         */
+        private void sendWindowed(InputStream fis, DatagramSocket socket, BandwidthScheduler.Flow flow) throws IOException {
+            ByteBuffer[] window = new ByteBuffer[windowSize]; // each slot keeps its encoded packet for resends
+            for (int i = 0; i < windowSize; i++) {
+                window[i] = acquire();
+            }
+            long[] sentAt = new long[windowSize];
+            boolean[] resent = new boolean[windowSize];
+            int lastAcked = 0;   // highest block the client has acknowledged
+            int nextBlock = 1;   // next block to put on the wire
+            int lastRead = 0;    // highest block loaded from the file
+            int finalBlock = -1; // the short block that ends the transfer, once known
+            int rewoundAt = -1;  // the ACK that last caused a rewind
+            long progress = System.nanoTime();
+            long deadline = 0;
+
+            while (lastAcked != finalBlock) {
+                while (nextBlock <= lastAcked + windowSize && (finalBlock == -1 || nextBlock <= finalBlock)) {
+                    int index = (nextBlock - 1) % windowSize;
+                    out.wrap(window[index]);
+                    if (nextBlock > lastRead) {
+                        int bytesRead = fis.readNBytes(window[index].array(), Packet.header_size, blockSize);
+                        out.data(nextBlock, bytesRead);
+                        lastRead = nextBlock;
+                        resent[index] = false;
+                        if (bytesRead < blockSize) {
+                            finalBlock = nextBlock;
+                        }
+                    } else {
+                        resent[index] = true;
+                    }
+                    flow.acquire(out.length());
+                    socket.send(out.fill(outgoing));
+                    stats.sent(out.payloadLength(), resent[index]);
+                    sentAt[index] = System.nanoTime();
+                    deadline = sentAt[index] + rtt.timeoutMillis() * 1_000_000;
+                    nextBlock++;
+                }
+
+                if (!receiveFromPeer(socket, deadline)) {
+                    if (System.nanoTime() - progress > RttEstimator.give_up_millis * 1_000_000) {
+                        stats.failed(TransferMetrics.failure_timeout);
+                        return;
+                    }
+                    rtt.backoff();
+                    nextBlock = lastAcked + 1;
+                    rewoundAt = lastAcked;
+                    continue;
+                }
+
+                int opcode = in.opcode();
+                if (opcode == op_error) {
+                    stats.failed(TransferMetrics.failure_peer_error);
+                    return;
+                }
+                if (opcode != op_acknowledgment) {
+                    continue;
+                }
+                int block = Packet.unwrapBlock(in.blockNumber(), lastAcked);
+                if (block > lastAcked && block < nextBlock) {
+                    int index = (block - 1) % windowSize;
+                    long now = System.nanoTime();
+                    if (!resent[index]) {
+                        rtt.sample(now - sentAt[index]);
+                    }
+                    lastAcked = block;
+                    progress = now;
+                    deadline = now + rtt.timeoutMillis() * 1_000_000;
+                }
+                if (windowSize > 1 && block == lastAcked && block < nextBlock - 1 && rewoundAt != block) {
+                    nextBlock = lastAcked + 1; // the client saw a gap, resend from there once
+                    rewoundAt = block;
+                }
+            }
+            stats.completed();
+        }
+
+        private void handleWriteRequest(TransferRequest transfer, DatagramSocket socket) throws IOException {
+            File target = new File(transfer.fileName).getAbsoluteFile();
+            if (transfer.transferSize > target.getParentFile().getUsableSpace()) {
+                sendError(socket, request.getSocketAddress(), 3, "Disk full or allocation exceeded.");
+                return;
+            }
+
+            stats = metrics.begin();
+            try (WriteBehindFile upload = transfer.uploadDigest != null
+                    ? WriteBehindFile.resumable(target.toPath(), transfer.uploadDigest, syncEveryBytes)
+                    : new WriteBehindFile(target.toPath(), transfer.transferSize, syncEveryBytes)) {
+                if (transfer.uploadDigest != null) {
+                    transfer.offerUploadOffset(upload.resumedFrom());
+                }
+                byte[] firstReply = transfer.hasOptions()
+                        ? transfer.createOptionAck()
+                        : new byte[]{0, (byte) op_acknowledgment, 0, 0};
+                socket.send(fill(firstReply));
+
+                int blockNumber = 1;      // full block counter; the wire carries it modulo 65536
+                int inWindow = 0;         // blocks received since the last ACK
+                boolean gapAcked = false; // only re-ACK once per detected gap
+                long ackSentAt = System.nanoTime();
+                boolean ackResent = false;
+                long progress = ackSentAt;
+                long deadline = ackSentAt + rtt.timeoutMillis() * 1_000_000;
+                ByteBuffer recvBuffer = acquire();
+                in.wrap(recvBuffer, incoming);
+                socket.setReceiveBufferSize(Math.max(socket.getReceiveBufferSize(), 2 * recvBuffer.capacity() * windowSize)); // datagrams cost about twice their payload
+
+                while (true) {
+                    if (!receiveFromPeer(socket, deadline)) {
+                        if (System.nanoTime() - progress > RttEstimator.give_up_millis * 1_000_000) { // stop
+                            stats.failed(TransferMetrics.failure_timeout);
+                            break;
+                        }
+                        rtt.backoff();
+                        if (blockNumber == 1) {
+                            socket.send(fill(firstReply));
+                        } else {
+                            sendAck(socket, blockNumber - 1);
+                        }
+                        ackResent = true;
+                        inWindow = 0;
+                        deadline = System.nanoTime() + rtt.timeoutMillis() * 1_000_000;
+                        continue;
+                    }
+
+                    int opcode = in.opcode();
+                    if (opcode == op_error) {
+                        stats.failed(TransferMetrics.failure_peer_error);
+                        break;
+                    }
+                    if (opcode != op_data) continue;
+
+                    if (in.blockNumber() != (blockNumber & 0xffff)) {
+                        if (!gapAcked) {
+                            sendAck(socket, blockNumber - 1);
+                            gapAcked = true;
+                        }
+                        inWindow = 0;
+                        continue;
+                    }
+                    long now = System.nanoTime();
+                    if (inWindow == 0 && !ackResent) {
+                        rtt.sample(now - ackSentAt); // first block after our ACK closes a round trip
+                    }
+                    progress = now;
+                    deadline = now + rtt.timeoutMillis() * 1_000_000;
+                    gapAcked = false;
+
+                    int dataLength = in.payloadLength();
+                    upload.write(recvBuffer.array(), Packet.header_size, dataLength); // copied only, the disk write happens behind the ACKs
+                    stats.received(dataLength);
+                    inWindow++;
+
+                    if (dataLength < blockSize) {
+                        try {
+                            upload.commit(); // the final ACK promises the file is in place
+                        } catch (IOException e) {
+                            sendError(socket, request.getSocketAddress(), 3, "Disk full or allocation exceeded.");
+                            throw e;
+                        }
+                        sendAck(socket, blockNumber);
+                        stats.completed();
+                        dally(socket, blockNumber);
+                        break;
+                    }
+                    if (inWindow == windowSize) {
+                        sendAck(socket, blockNumber);
+                        ackSentAt = System.nanoTime();
+                        ackResent = false;
+                        inWindow = 0;
+                    }
+                    blockNumber++;
+                }
+            } finally {
+                stats.end();
+            }
+        }
+
+        /**
+         * Lingers after the final ACK so a retransmitted last block (our ACK was lost)
+         * is acknowledged again instead of leaving the client to time out.
+         */
+        private void dally(DatagramSocket socket, int finalBlock) throws IOException {
+            long deadline = System.nanoTime() + 2 * rtt.timeoutMillis() * 1_000_000;
+            while (receiveFromPeer(socket, deadline)) {
+                if (in.opcode() == op_data && in.blockNumber() == (finalBlock & 0xffff)) {
+                    sendAck(socket, finalBlock);
+                }
+            }
+        }
+
+        /**
+         * Waits until the deadline for a packet from this transfer's client, leaving it in
+         * {@code in}. Packets from anyone else get an "Unknown transfer ID" error and do not
+         * extend the wait.
+         */
+        private boolean receiveFromPeer(DatagramSocket socket, long deadline) throws IOException {
+            while (true) {
+                long remaining = (deadline - System.nanoTime()) / 1_000_000;
+                if (remaining <= 0) {
+                    return false;
+                }
+                socket.setSoTimeout((int) remaining);
+                try {
+                    socket.receive(incoming);
+                } catch (SocketTimeoutException ex) {
+                    return false;
+                }
+                if (incoming.getPort() == request.getPort() && incoming.getAddress().equals(request.getAddress())) {
+                    in.received(incoming.getLength());
+                    return true;
+                }
+                sendError(socket, incoming.getSocketAddress(), 5, "Unknown transfer ID.");
+            }
+        }
+
+        private DatagramPacket fill(byte[] packet) {
+            outgoing.setData(packet);
+            return outgoing;
+        }
+
+        private void sendAck(DatagramSocket socket, int blockNumber) throws IOException {
+            socket.send(control.ack(blockNumber).fill(outgoing));
+        }
+
+        private void sendError(DatagramSocket socket, SocketAddress target, int errorCode, String errorMsg) throws IOException {
+            metrics.errorSent(errorCode);
+            control.error(errorCode, errorMsg);
+            socket.send(new DatagramPacket(control.buffer().array(), control.length(), target));
+        }
+    }
+}
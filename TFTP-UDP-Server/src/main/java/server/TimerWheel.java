@@ -0,0 +1,67 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timer wheel for retransmission deadlines. Scheduling and expiry are O(1) per
+ * entry; deadlines further out than one revolution simply stay in their slot until due.
+ * Not thread-safe: it is owned by a single event loop.
+ */
+final class TimerWheel<T> {
+
+    private final long tickMillis;
+    private final ArrayDeque<Entry<T>>[] slots;
+    private long currentTick;
+    private int size;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimerWheel(long tickMillis, int slotCount, long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.slots = new ArrayDeque[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new ArrayDeque<>();
+        }
+        this.currentTick = nowMillis / tickMillis;
+    }
+
+    void schedule(T item, long deadlineMillis) {
+        long tick = Math.max(deadlineMillis / tickMillis, currentTick);
+        slots[(int) (tick % slots.length)].add(new Entry<>(item, deadlineMillis));
+        size++;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Milliseconds until the wheel next needs to be advanced, at least 1.
+     */
+    long millisToNextTick(long nowMillis) {
+        return Math.max(1, (currentTick + 1) * tickMillis - nowMillis);
+    }
+
+    /**
+     * Hands every entry whose deadline has passed to the callback, in tick order.
+     */
+    void advance(long nowMillis, Consumer<T> expired) {
+        long targetTick = nowMillis / tickMillis;
+        long first = Math.max(currentTick, targetTick - slots.length + 1); // one revolution covers every slot
+        for (long tick = first; tick <= targetTick; tick++) {
+            ArrayDeque<Entry<T>> slot = slots[(int) (tick % slots.length)];
+            for (int i = slot.size(); i > 0; i--) {
+                Entry<T> entry = slot.poll();
+                if (entry.deadlineMillis <= nowMillis) {
+                    size--;
+                    expired.accept(entry.item);
+                } else {
+                    slot.add(entry);
+                }
+            }
+        }
+        currentTick = targetTick;
+    }
+
+    private record Entry<T>(T item, long deadlineMillis) {}
+}
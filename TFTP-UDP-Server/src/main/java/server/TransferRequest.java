@@ -0,0 +1,134 @@
+package server;
+
+import core.Packet;
+import core.Resume;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A parsed RRQ/WRQ together with the options the server agreed to (RFC 2347).
+ */
+final class TransferRequest {
+
+    final int opcode;
+    final String fileName;
+    final Map<String, String> options;
+    final Map<String, String> accepted = new LinkedHashMap<>();
+
+    int blockSize = 512; // payload bytes per DATA packet
+    int windowSize = 1;  // blocks in flight before an ACK is required
+    long transferSize = -1; // RFC 2349 tsize announced by the client on a write, -1 if unknown
+    String uploadDigest;    // digest of the whole file on a write that asks to be resumable, else null
+
+    private TransferRequest(int opcode, String fileName, Map<String, String> options) {
+        this.opcode = opcode;
+        this.fileName = fileName;
+        this.options = options;
+    }
+
+    static TransferRequest parse(Packet packet) {
+        int index = packet.skipString(2);   // past the filename
+        index = packet.skipString(index);   // past the transfer mode
+        return new TransferRequest(packet.opcode(), packet.string(2), packet.options(index));
+    }
+
+    /**
+     * Applies the options this server understands, clamped to the server limits.
+     */
+    void negotiate(int maxBlockSize, int maxWindowSize) {
+        int requested = intOption("blksize");
+        if (requested >= 8 && requested <= 65464) {
+            blockSize = Math.min(requested, maxBlockSize);
+            accepted.put("blksize", String.valueOf(blockSize));
+        }
+        requested = intOption("windowsize");
+        if (requested >= 1 && requested <= 32767) { // larger windows would make 16-bit block numbers ambiguous
+            windowSize = Math.min(requested, maxWindowSize);
+            accepted.put("windowsize", String.valueOf(windowSize));
+        }
+        if (opcode == Packet.op_write_request && options.containsKey("tsize")) {
+            try {
+                long size = Long.parseLong(options.get("tsize"));
+                if (size >= 0) {
+                    transferSize = size;
+                    accepted.put("tsize", String.valueOf(transferSize));
+                }
+            } catch (NumberFormatException ignored) {}
+        }
+        if (opcode == Packet.op_write_request && Resume.isDigest(options.get("digest"))) {
+            uploadDigest = options.get("digest");
+        }
+    }
+
+    /**
+     * Answers a write's digest option with the offset the upload continues from, 0 for a
+     * fresh start; the client sends DATA block 1 from there.
+     */
+    void offerUploadOffset(long offset) {
+        accepted.put("offset", String.valueOf(offset));
+    }
+
+    /**
+     * Answers a read's offset and digest options (see {@link Resume}): if the client's
+     * bytes match the start of the file the offset is acknowledged and DATA block 1 starts
+     * there, otherwise it is left out and the client starts over.
+     *
+     * @return the offset to read from
+     */
+    long offerResume(Path file) throws IOException {
+        if (opcode != Packet.op_read_request || !options.containsKey("offset")) {
+            return 0;
+        }
+        long offset;
+        try {
+            offset = Long.parseLong(options.get("offset"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+        offset = Resume.verify(file, offset, options.get("digest"));
+        if (offset > 0) {
+            accepted.put("offset", String.valueOf(offset));
+        }
+        return offset;
+    }
+
+    /**
+     * Answers a read request's tsize option with the size of the file being sent.
+     */
+    void offerTransferSize(long size) {
+        if (opcode == Packet.op_read_request && options.containsKey("tsize")) {
+            accepted.put("tsize", String.valueOf(size));
+        }
+    }
+
+    /**
+     * Whether a read asks to join a multicast transfer (RFC 2090). The option has no value.
+     */
+    boolean wantsMulticast() {
+        return opcode == Packet.op_read_request && options.containsKey("multicast");
+    }
+
+    boolean hasOptions() {
+        return !accepted.isEmpty();
+    }
+
+    byte[] createOptionAck() {
+        return new Packet().wrap(ByteBuffer.allocate(512)).optionAck(accepted).toByteArray();
+    }
+
+    private int intOption(String name) {
+        String value = options.get(name);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1; // unknown values are simply not acknowledged
+        }
+    }
+}
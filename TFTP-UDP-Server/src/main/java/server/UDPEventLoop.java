@@ -0,0 +1,550 @@
+package server;
+
+import core.FileCache;
+import core.Packet;
+import core.RttEstimator;
+import core.TransferMetrics;
+import core.WriteBehindFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Runs many UDP transfers on one thread. A non-blocking DatagramChannel bound to the
+ * server port carries every transfer, demultiplexed by client address, and a timer
+ * wheel drives retransmissions. With SO_REUSEPORT several loops can bind the same
+ * port and the kernel spreads clients across them.
+ */
+final class UDPEventLoop implements Runnable {
+
+    private static final int op_data = Packet.op_data;
+    private static final int op_acknowledgment = Packet.op_acknowledgment;
+    private static final int op_error = Packet.op_error;
+
+    private static final int max_packet_size = Packet.max_packet_size;
+    private static final int socket_buffer_size = 4 * 1024 * 1024;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final Map<SocketAddress, Transfer> transfers = new HashMap<>();
+    private final TimerWheel<Transfer> timers = new TimerWheel<>(10, 512, System.currentTimeMillis());
+    private final ByteBuffer inBuffer = ByteBuffer.allocateDirect(max_packet_size);
+    private final ByteBuffer outBuffer = ByteBuffer.allocateDirect(max_packet_size);
+    private final Packet in = new Packet().wrap(inBuffer);   // the datagram being dispatched
+    private final Packet out = new Packet().wrap(outBuffer); // shared by every transfer's sends
+    private final int maxBlockSize;
+    private final int maxWindowSize;
+    private final FileCache fileCache;
+    private final long syncEveryBytes;
+    private final TransferMetrics metrics;
+    private final Queue<Runnable> completions = new ConcurrentLinkedQueue<>(); // posted by the write-behind executor
+    private long now;
+
+    UDPEventLoop(int port, boolean reusePort, int maxBlockSize, int maxWindowSize, FileCache fileCache, long syncEveryBytes,
+                 TransferMetrics metrics) throws IOException {
+        this.maxBlockSize = maxBlockSize;
+        this.maxWindowSize = maxWindowSize;
+        this.fileCache = fileCache;
+        this.syncEveryBytes = syncEveryBytes;
+        this.metrics = metrics;
+        this.selector = Selector.open();
+        this.channel = DatagramChannel.open();
+        if (reusePort) {
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, socket_buffer_size);
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, socket_buffer_size);
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    static boolean supportsReusePort() {
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                now = System.currentTimeMillis();
+                if (timers.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.select(timers.millisToNextTick(now));
+                }
+                selector.selectedKeys().clear();
+                now = System.currentTimeMillis();
+
+                SocketAddress peer;
+                int received = 0;
+                while (received++ < 1024 && (peer = channel.receive(inBuffer.clear())) != null) {
+                    inBuffer.flip();
+                    if (inBuffer.remaining() >= 2) {
+                        dispatch(peer);
+                    }
+                }
+                Runnable completion;
+                while ((completion = completions.poll()) != null) {
+                    completion.run();
+                }
+                timers.advance(now, this::expire);
+            }
+        } catch (IOException e) {
+            System.err.println("Event loop failed: " + e.getMessage());
+        }
+    }
+
+    private void dispatch(SocketAddress peer) {
+        int opcode = in.opcode();
+        Transfer transfer = transfers.get(peer);
+        try {
+            if (opcode == Packet.op_read_request || opcode == Packet.op_write_request) {
+                TransferRequest request = TransferRequest.parse(in);
+                if (transfer != null) {
+                    if (transfer.request.opcode == opcode && transfer.request.fileName.equals(request.fileName)) {
+                        metrics.duplicateRequest();
+                        return; // retransmitted request, the transfer's own timer covers it
+                    }
+                    transfer.close();
+                }
+                request.negotiate(maxBlockSize, maxWindowSize);
+                start(peer, request);
+            } else if (transfer != null) {
+                transfer.onPacket(opcode);
+            }
+        } catch (IOException | RuntimeException e) { // only this transfer fails, never the loop
+            System.err.println("Request handling failed: " + e.getMessage());
+            if (transfer != null) {
+                transfer.close();
+            }
+        }
+    }
+
+    private void start(SocketAddress peer, TransferRequest request) throws IOException {
+        Transfer transfer;
+        if (request.opcode == Packet.op_read_request) {
+            File file = new File(request.fileName);
+            if (!file.exists()) {
+                sendError(peer, 1, "File not found.");
+                return;
+            }
+            ByteBuffer cached = fileCache.get(file.toPath());
+            if (cached != null) {
+                request.offerTransferSize(cached.remaining());
+                transfer = new ReadTransfer(peer, request, cached);
+            } else {
+                FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                long size;
+                try {
+                    size = source.size(); // before the transfer exists, so a failure here counts nothing as active
+                } catch (IOException e) {
+                    source.close();
+                    throw e;
+                }
+                request.offerTransferSize(size);
+                transfer = new ReadTransfer(peer, request, source, size);
+            }
+        } else {
+            File target = new File(request.fileName).getAbsoluteFile();
+            if (request.transferSize > target.getParentFile().getUsableSpace()) {
+                sendError(peer, 3, "Disk full or allocation exceeded.");
+                return;
+            }
+            transfer = new WriteTransfer(peer, request, new WriteBehindFile(target.toPath(), request.transferSize, syncEveryBytes));
+        }
+        transfers.put(peer, transfer);
+        try {
+            transfer.start();
+        } catch (IOException | RuntimeException e) {
+            transfer.close();
+            throw e;
+        }
+    }
+
+    private void expire(Transfer transfer) {
+        transfer.scheduled = false;
+        if (transfer.closed) {
+            return;
+        }
+        if (transfer.deadline > now) { // progress was made since this entry was scheduled
+            transfer.scheduled = true;
+            timers.schedule(transfer, transfer.deadline);
+            return;
+        }
+        try {
+            if (now - transfer.progress > RttEstimator.give_up_millis) {
+                transfer.stats.failed(TransferMetrics.failure_timeout);
+                transfer.close();
+            } else {
+                transfer.rtt.backoff();
+                transfer.onTimeout();
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Request handling failed: " + e.getMessage());
+            transfer.close();
+        }
+    }
+
+    private void send(SocketAddress peer, byte[] packet) throws IOException {
+        channel.send(ByteBuffer.wrap(packet), peer);
+    }
+
+    private void sendAck(SocketAddress peer, int blockNumber) throws IOException {
+        channel.send(out.ack(blockNumber).buffer(), peer);
+    }
+
+    private void sendError(SocketAddress peer, int errorCode, String errorMsg) throws IOException {
+        metrics.errorSent(errorCode);
+        channel.send(out.error(errorCode, errorMsg).buffer(), peer);
+    }
+
+    private abstract class Transfer {
+        final SocketAddress peer;
+        final TransferRequest request;
+        final FileChannel file; // null when a read is served from the file cache
+        final RttEstimator rtt = new RttEstimator(metrics);
+        final TransferMetrics.Transfer stats = metrics.begin();
+        long deadline;
+        long progress = now; // last time the peer moved the transfer forward
+        boolean scheduled;
+        boolean closed;
+
+        Transfer(SocketAddress peer, TransferRequest request, FileChannel file) {
+            this.peer = peer;
+            this.request = request;
+            this.file = file;
+        }
+
+        abstract void start() throws IOException;
+
+        /**
+         * Handles the datagram currently in {@code in}.
+         */
+        abstract void onPacket(int opcode) throws IOException;
+
+        abstract void onTimeout() throws IOException;
+
+        /**
+         * Pushes the retransmission deadline out. Only one wheel entry exists per
+         * transfer; a stale one is re-filed when it fires early.
+         */
+        void armTimer() {
+            armTimer(rtt.timeoutMillis());
+        }
+
+        void armTimer(long timeoutMillis) {
+            deadline = now + timeoutMillis;
+            if (!scheduled) {
+                scheduled = true;
+                timers.schedule(this, deadline);
+            }
+        }
+
+        void close() {
+            closed = true;
+            stats.end(); // counted as an I/O failure unless it already ended
+            transfers.remove(peer, this);
+            try {
+                if (file != null) {
+                    file.close();
+                }
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Sends a file with up to windowSize unacknowledged blocks, reading each block
+     * straight from the file (or its cached copy) at its offset so a rewind needs no
+     * window copy.
+     */
+    private final class ReadTransfer extends Transfer {
+        private final ByteBuffer cached; // shared read-only contents, or null to read the file
+        private final long size;
+        private final int finalBlock; // the short block that ends the transfer
+        private byte[] optionAck;     // non-null until the client confirms the OACK with ACK 0
+        private long optionAckSentAt;
+        private boolean optionAckResent;
+        private final long[] sentAt = new long[request.windowSize];
+        private final boolean[] resent = new boolean[request.windowSize];
+        private int lastAcked = 0;
+        private int nextBlock = 1;
+        private int highestSent = 0;
+        private int rewoundAt = -1;   // the ACK that last caused a rewind
+
+        ReadTransfer(SocketAddress peer, TransferRequest request, FileChannel file, long size) {
+            super(peer, request, file);
+            this.cached = null;
+            this.size = size;
+            this.finalBlock = (int) (size / request.blockSize) + 1;
+        }
+
+        ReadTransfer(SocketAddress peer, TransferRequest request, ByteBuffer cached) {
+            super(peer, request, null);
+            this.cached = cached.slice(); // block offsets count from where the view starts
+            this.size = this.cached.remaining();
+            this.finalBlock = (int) (size / request.blockSize) + 1;
+        }
+
+        @Override
+        void start() throws IOException {
+            if (request.hasOptions()) {
+                optionAck = request.createOptionAck();
+                send(peer, optionAck);
+                optionAckSentAt = System.nanoTime();
+                armTimer();
+            } else {
+                fillWindow();
+            }
+        }
+
+        @Override
+        void onPacket(int opcode) throws IOException {
+            if (opcode == op_error) {
+                stats.failed(TransferMetrics.failure_peer_error);
+                close();
+                return;
+            }
+            if (opcode != op_acknowledgment || in.length() < Packet.header_size) {
+                return;
+            }
+            int block = Packet.unwrapBlock(in.blockNumber(), lastAcked);
+            if (optionAck != null) {
+                if (block == 0) {
+                    if (!optionAckResent) {
+                        rtt.sample(System.nanoTime() - optionAckSentAt);
+                    }
+                    optionAck = null;
+                    progress = now;
+                    fillWindow();
+                }
+                return;
+            }
+            if (block > lastAcked && block < nextBlock) {
+                int index = (block - 1) % request.windowSize;
+                if (!resent[index]) {
+                    rtt.sample(System.nanoTime() - sentAt[index]);
+                }
+                lastAcked = block;
+                progress = now;
+                armTimer();
+            } else if (block != lastAcked) {
+                return; // late duplicate of an older ACK
+            }
+            if (lastAcked == finalBlock) {
+                stats.completed();
+                close();
+                return;
+            }
+            if (request.windowSize > 1 && block == lastAcked && block < nextBlock - 1 && rewoundAt != block) {
+                nextBlock = lastAcked + 1; // the client saw a gap, resend from there once
+                rewoundAt = block;
+            }
+            fillWindow();
+        }
+
+        @Override
+        void onTimeout() throws IOException {
+            if (optionAck != null) {
+                send(peer, optionAck);
+                optionAckResent = true;
+                armTimer();
+            } else {
+                nextBlock = lastAcked + 1;
+                rewoundAt = lastAcked;
+                fillWindow();
+            }
+        }
+
+        private void fillWindow() throws IOException {
+            boolean sent = false;
+            while (nextBlock <= lastAcked + request.windowSize && nextBlock <= finalBlock) {
+                int index = (nextBlock - 1) % request.windowSize;
+                resent[index] = nextBlock <= highestSent;
+                stats.sent(sendBlock(nextBlock), resent[index]);
+                sentAt[index] = System.nanoTime();
+                highestSent = Math.max(highestSent, nextBlock++);
+                sent = true;
+            }
+            if (sent) {
+                armTimer();
+            }
+        }
+
+        /**
+         * @return the payload length sent
+         */
+        private int sendBlock(int blockNumber) throws IOException {
+            long position = (long) (blockNumber - 1) * request.blockSize;
+            int length = (int) Math.min(request.blockSize, size - position);
+            outBuffer.clear().position(Packet.header_size).limit(Packet.header_size + length);
+            if (cached != null) {
+                outBuffer.put(cached.slice((int) position, length));
+            }
+            while (outBuffer.hasRemaining()) {
+                if (file.read(outBuffer, position + outBuffer.position() - Packet.header_size) < 0) {
+                    break;
+                }
+            }
+            int sent = outBuffer.position() - Packet.header_size;
+            channel.send(out.data(blockNumber, sent).buffer(), peer);
+            return sent;
+        }
+    }
+
+    /**
+     * Receives a file, acknowledging once per window or on the first gap. Blocks are
+     * handed to a write-behind pipeline; the final ACK goes out once the upload has been
+     * committed off the loop thread.
+     */
+    private final class WriteTransfer extends Transfer {
+        private final WriteBehindFile upload;
+        private final byte[] firstReply;
+        private int expectedBlock = 1;     // full block counter; the wire carries it modulo 65536
+        private int inWindow = 0;          // blocks received since the last ACK
+        private boolean gapAcked = false;  // only re-ACK once per detected gap
+        private long ackSentAt = System.nanoTime();
+        private boolean ackResent = false;
+        private boolean committing = false; // final block received, waiting for the disk
+        private boolean finished = false;  // final block ACKed, lingering for a retransmission
+
+        WriteTransfer(SocketAddress peer, TransferRequest request, WriteBehindFile upload) {
+            super(peer, request, null);
+            this.upload = upload;
+            this.firstReply = request.hasOptions()
+                    ? request.createOptionAck()
+                    : new byte[]{0, (byte) op_acknowledgment, 0, 0};
+        }
+
+        @Override
+        void start() throws IOException {
+            send(peer, firstReply);
+            armTimer();
+        }
+
+        @Override
+        void onPacket(int opcode) throws IOException {
+            if (opcode == op_error) {
+                stats.failed(TransferMetrics.failure_peer_error);
+                close();
+                return;
+            }
+            if (opcode != op_data || in.length() < Packet.header_size) {
+                return;
+            }
+            int block = in.blockNumber();
+            if (committing) {
+                return;
+            }
+            if (finished) {
+                if (block == (expectedBlock & 0xffff)) {
+                    sendAck(peer, block); // our final ACK was lost
+                }
+                return;
+            }
+            if (block != (expectedBlock & 0xffff)) {
+                if (!gapAcked) {
+                    sendAck(peer, expectedBlock - 1);
+                    gapAcked = true;
+                }
+                inWindow = 0;
+                return;
+            }
+            int dataLength = in.payloadLength();
+            if (!upload.offer(in.payload())) {
+                return; // every buffer is still queued for the disk: drop it like a lost packet
+            }
+            stats.received(dataLength);
+            if (inWindow == 0 && !ackResent) {
+                rtt.sample(System.nanoTime() - ackSentAt); // first block after our ACK closes a round trip
+            }
+            progress = now;
+            gapAcked = false;
+            inWindow++;
+
+            if (dataLength < request.blockSize) {
+                committing = true;
+                upload.commitAsync().whenComplete((ignored, failure) -> {
+                    completions.add(() -> committed(block, failure));
+                    selector.wakeup();
+                });
+                return;
+            }
+            if (inWindow == request.windowSize) {
+                sendAck(peer, block);
+                ackSentAt = System.nanoTime();
+                ackResent = false;
+                inWindow = 0;
+            }
+            expectedBlock++;
+            armTimer();
+        }
+
+        private void committed(int block, Throwable failure) {
+            if (closed) {
+                return;
+            }
+            committing = false;
+            try {
+                if (failure != null) {
+                    sendError(peer, 3, "Disk full or allocation exceeded.");
+                    close();
+                    return;
+                }
+                sendAck(peer, block);
+                stats.completed();
+                finished = true;
+                armTimer(2 * rtt.timeoutMillis());
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Request handling failed: " + e.getMessage());
+                close();
+            }
+        }
+
+        @Override
+        void onTimeout() throws IOException {
+            if (committing) {
+                progress = now; // a slow disk is not a silent peer
+                armTimer();
+                return;
+            }
+            if (finished) {
+                close();
+                return;
+            }
+            if (expectedBlock == 1) {
+                send(peer, firstReply);
+            } else {
+                sendAck(peer, expectedBlock - 1);
+            }
+            ackResent = true;
+            inWindow = 0;
+            armTimer();
+        }
+
+        @Override
+        void close() {
+            if (!committing && !finished) {
+                upload.closeAsync(); // an unfinished upload never replaces the target
+            }
+            super.close();
+        }
+    }
+}
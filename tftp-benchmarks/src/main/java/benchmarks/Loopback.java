@@ -0,0 +1,166 @@
+package benchmarks;
+
+import core.Packet;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the real servers inside the benchmark JVM and the helpers around them. JMH forks a
+ * fresh JVM for every parameter combination, so each server is started once per fork with
+ * that fork's settings and lives until the fork exits. Files are addressed by absolute
+ * path, which both servers accept as a file name, so nothing is written to the working
+ * directory.
+ */
+final class Loopback {
+
+    static final String host = "127.0.0.1";
+    static final int udp_port = 9000;
+    static final int tcp_port = 9019;
+
+    private static boolean udpStarted;
+    private static boolean tcpStarted;
+
+    private Loopback() {
+    }
+
+    static synchronized void startUdpServer(String... args) throws InterruptedException {
+        if (!udpStarted) {
+            start("udp-server", () -> server.TFTPUDPServer.main(args));
+            while (!answersUdp()) {
+                Thread.sleep(10);
+            }
+            udpStarted = true;
+        }
+    }
+
+    static synchronized void startTcpServer(String... args) throws InterruptedException {
+        if (!tcpStarted) {
+            start("tcp-server", () -> server.TFTPTCPServer.main(args));
+            while (!answersTcp()) {
+                Thread.sleep(10);
+            }
+            tcpStarted = true;
+        }
+    }
+
+    static Path createFile(Path dir, String name, long size) throws IOException {
+        Path file = dir.resolve(name);
+        byte[] chunk = new byte[64 * 1024];
+        new Random(size).nextBytes(chunk);
+        try (var out = Files.newOutputStream(file)) {
+            for (long written = 0; written < size; written += chunk.length) {
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Runs one transfer per index on the executor and waits for all of them, failing the
+     * benchmark if any transfer failed or produced a file of the wrong size.
+     */
+    static void runAll(ExecutorService executor, int count, TransferTask task, Path[] results, long expectedSize)
+            throws InterruptedException, ExecutionException {
+        List<Future<?>> pending = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            try {
+                Files.deleteIfExists(results[i]); // so a previous round's file cannot pass the check below
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            int index = i;
+            pending.add(executor.submit((Callable<Void>) () -> {
+                task.run(index);
+                return null;
+            }));
+        }
+        for (Future<?> transfer : pending) {
+            transfer.get();
+        }
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        for (int i = 0; i < count; i++) {
+            // TCP protocol 1 uploads are not acknowledged, so the server may still be storing the file
+            while (size(results[i]) != expectedSize && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            if (size(results[i]) != expectedSize) {
+                throw new IllegalStateException("Transfer " + i + " produced " + size(results[i]) + " of " + expectedSize + " bytes");
+            }
+        }
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.exists(file) ? Files.size(file) : -1;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static void deleteRecursively(Path dir) throws IOException {
+        try (var paths = Files.walk(dir)) {
+            for (Path path : paths.sorted((a, b) -> b.getNameCount() - a.getNameCount()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    interface TransferTask {
+        void run(int index) throws IOException;
+    }
+
+    private static void start(String name, Runnable server) {
+        Thread thread = new Thread(server, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Asks for a file that does not exist; any reply means the server is up.
+     */
+    private static boolean answersUdp() {
+        try (DatagramSocket probe = new DatagramSocket()) {
+            probe.setSoTimeout(100);
+            Packet request = new Packet().wrap(ByteBuffer.allocate(512))
+                    .request(Packet.op_read_request, "/nonexistent/probe", Map.of());
+            probe.send(new DatagramPacket(request.buffer().array(), request.length(), new InetSocketAddress(host, udp_port)));
+            probe.receive(new DatagramPacket(new byte[512], 512));
+            return true;
+        } catch (IOException e) {
+            return false; // timed out, not listening yet
+        }
+    }
+
+    private static boolean answersTcp() {
+        try (Socket probe = new Socket(host, tcp_port);
+             DataInputStream in = new DataInputStream(probe.getInputStream());
+             DataOutputStream out = new DataOutputStream(probe.getOutputStream())) {
+            out.writeShort(2 << 8 | Packet.op_read_request); // protocol 2 read
+            out.writeUTF("/nonexistent/probe");
+            out.flush();
+            in.readLong();
+            in.readUTF();
+            return true;
+        } catch (IOException e) {
+            return false; // not listening yet
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package benchmarks;
+
+import core.Packet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Microbenchmarks of the per-packet work on the hot path: encoding DATA and ACK headers,
+ * decoding an incoming ACK, and the per-transfer request encode/parse.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PacketCodecBenchmark {
+
+    @Param({"false", "true"})
+    public boolean direct;
+
+    private final Packet packet = new Packet();
+    private ByteBuffer data;
+    private ByteBuffer ack;
+    private ByteBuffer request;
+    private Map<String, String> options;
+    private int block;
+
+    @Setup
+    public void setUp() {
+        data = allocate(4 + 1428);
+        ack = allocate(516);
+        request = allocate(516);
+        options = new LinkedHashMap<>();
+        options.put("blksize", "1428");
+        options.put("tsize", "0");
+        options.put("windowsize", "16");
+        packet.wrap(ack).ack(4242);
+        packet.wrap(request).request(Packet.op_read_request, "images/pxelinux.0", options);
+    }
+
+    @Benchmark
+    public int encodeData() {
+        block++;
+        return packet.wrap(data).data(block, 1428).length();
+    }
+
+    @Benchmark
+    public int encodeAck() {
+        block++;
+        return packet.wrap(ack).ack(block).length();
+    }
+
+    @Benchmark
+    public int decodeAck() {
+        packet.wrap(ack);
+        return packet.opcode() == Packet.op_acknowledgment ? Packet.unwrapBlock(packet.blockNumber(), 4200) : -1;
+    }
+
+    @Benchmark
+    public int encodeRequest() {
+        return packet.wrap(request).request(Packet.op_read_request, "images/pxelinux.0", options).length();
+    }
+
+    @Benchmark
+    public Map<String, String> decodeRequest() {
+        packet.wrap(request);
+        int index = packet.skipString(packet.skipString(2));
+        return packet.options(index);
+    }
+
+    private ByteBuffer allocate(int size) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+}
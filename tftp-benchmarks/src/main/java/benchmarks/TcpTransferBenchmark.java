@@ -0,0 +1,86 @@
+package benchmarks;
+
+import client.TFTPTCPClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips through a real TFTPTCPServer over loopback, with the framed (1) or streamed
+ * (2) protocol. One operation is a batch of {@code concurrency} simultaneous transfers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TcpTransferBenchmark {
+
+    @Param({"65536", "4194304"})
+    public long fileSize;
+
+    @Param({"1", "2"})
+    public int protocol;
+
+    @Param({"1", "16"})
+    public int concurrency;
+
+    @Param({"false", "true"})
+    public boolean virtualThreads;
+
+    private Path dir;
+    private String source;
+    private Path[] downloads;
+    private Path[] uploads;
+    private ExecutorService executor;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        Loopback.startTcpServer(virtualThreads ? new String[]{"--virtual-threads"} : new String[0]);
+        TFTPTCPClient.configure(protocol);
+        dir = Files.createTempDirectory("tftp-tcp-bench");
+        source = Loopback.createFile(dir, "source.bin", fileSize).toString();
+        downloads = new Path[concurrency];
+        uploads = new Path[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            downloads[i] = dir.resolve("get-" + i + ".bin");
+            uploads[i] = dir.resolve("put-" + i + ".bin");
+        }
+        executor = Executors.newFixedThreadPool(concurrency);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        Loopback.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public void get() throws Exception {
+        Loopback.runAll(executor, concurrency,
+                i -> TFTPTCPClient.get(Loopback.host, source, downloads[i].toString()), downloads, fileSize);
+    }
+
+    @Benchmark
+    public void put() throws Exception {
+        Loopback.runAll(executor, concurrency,
+                i -> TFTPTCPClient.put(Loopback.host, source, uploads[i].toString()), uploads, fileSize);
+    }
+}
@@ -0,0 +1,322 @@
+package core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Server-wide share of the uplink among the transfers sending to clients. Every transfer
+ * is a {@link Flow} that asks for bytes before it sends them. Grants come out of token
+ * buckets: a global one for the server and one for each client, or for each subnet with a
+ * prefix shorter than the address. When the buckets are dry, the waiting requests are
+ * served in start-time fair queuing order. Each flow advances by the bytes it is granted
+ * divided by its weight. A new or lightly used flow is served ahead of flows that have
+ * been sending a backlog, and a flow of weight 4 gets four times the bytes of a flow of
+ * weight 1 while both are busy. Weights come from priority classes that match the file
+ * name, so boot files can keep low latency while bulk images use the rest.
+ * <p>
+ * With no limit configured every flow is {@link #unlimited} and costs nothing.
+ */
+public final class BandwidthScheduler {
+
+    public static final long quantum = 64 * 1024;    // most a bulk sender should ask for at once
+    private static final double burst_seconds = 0.05; // buckets hold 50 ms of their rate, and at least one quantum
+    private static final long max_wait_nanos = 100_000_000L; // bounds a waiter's sleep if its turn was misjudged
+
+    public static final Flow unlimited = new Flow(null, null, null, 1);
+
+    /**
+     * Gives transfers of files matching {@code glob} the weight. Patterns are tried in the
+     * order given and match either the whole requested name or its last element.
+     */
+    public record PriorityClass(String glob, int weight, PathMatcher matcher) {
+
+        /**
+         * Parses {@code <glob>=<weight>}, e.g. {@code pxelinux.*=16}.
+         */
+        public static PriorityClass parse(String spec) {
+            int split = spec.lastIndexOf('=');
+            if (split <= 0) {
+                throw new IllegalArgumentException("Expected <glob>=<weight>: " + spec);
+            }
+            String glob = spec.substring(0, split);
+            int weight = Math.max(1, Integer.parseInt(spec.substring(split + 1)));
+            return new PriorityClass(glob, weight, FileSystems.getDefault().getPathMatcher("glob:" + glob));
+        }
+
+        boolean matches(String fileName) {
+            Path path = Path.of(fileName);
+            return matcher.matches(path) || (path.getFileName() != null && matcher.matches(path.getFileName()));
+        }
+    }
+
+    private final Bucket global;        // null if the server has no overall limit
+    private final long clientRate;      // bytes per second for each client or subnet, 0 for none
+    private final int prefixBits;       // IPv4 prefix that groups clients; IPv6 clients are grouped by /64
+    private final List<PriorityClass> classes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<InetAddress, Bucket> clients = new HashMap<>(); // guarded by lock
+    private final TreeSet<Request> waiting = new TreeSet<>(
+            Comparator.comparingDouble(Request::start).thenComparingLong(Request::sequence)); // guarded by lock
+    private double virtualTime; // start tag of the request granted last, guarded by lock
+    private long nextSequence;  // guarded by lock
+
+    private record Request(Flow flow, long bytes, double start, long sequence, Condition turn) {
+    }
+
+    /**
+     * @param globalRate bytes per second for the whole server, 0 for no limit
+     * @param clientRate bytes per second for each client or subnet, 0 for no limit
+     * @param prefixBits how many leading bits of an IPv4 address make a client, 32 for each host
+     */
+    public BandwidthScheduler(long globalRate, long clientRate, int prefixBits, List<PriorityClass> classes) {
+        this.global = globalRate > 0 ? new Bucket(globalRate) : null;
+        this.clientRate = Math.max(0, clientRate);
+        this.prefixBits = Math.clamp(prefixBits, 0, 32);
+        this.classes = List.copyOf(classes);
+    }
+
+    /**
+     * Parses a rate in bytes per second with an optional k, m or g suffix (powers of 1024).
+     */
+    public static long parseRate(String rate) {
+        String value = rate.strip().toLowerCase();
+        long unit = switch (value.isEmpty() ? ' ' : value.charAt(value.length() - 1)) {
+            case 'k' -> 1024L;
+            case 'm' -> 1024L * 1024;
+            case 'g' -> 1024L * 1024 * 1024;
+            default -> 1;
+        };
+        return Long.parseLong(unit == 1 ? value : value.substring(0, value.length() - 1)) * unit;
+    }
+
+    public boolean isEnabled() {
+        return global != null || clientRate > 0;
+    }
+
+    /**
+     * Starts accounting for a transfer of {@code fileName} to {@code client}. Close the
+     * flow when the transfer ends.
+     */
+    public Flow open(InetAddress client, String fileName) {
+        if (!isEnabled()) {
+            return unlimited;
+        }
+        int weight = 1;
+        for (PriorityClass priority : classes) {
+            if (priority.matches(fileName)) {
+                weight = priority.weight();
+                break;
+            }
+        }
+        InetAddress key = clientRate > 0 ? clientKey(client) : null;
+        lock.lock();
+        try {
+            Bucket bucket = null;
+            if (key != null) {
+                bucket = clients.computeIfAbsent(key, k -> new Bucket(clientRate));
+                bucket.flows++;
+            }
+            Flow flow = new Flow(this, key, bucket, weight);
+            flow.finish = virtualTime;
+            return flow;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private InetAddress clientKey(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        int bits = bytes.length == 4 ? prefixBits : 64;
+        for (int i = 0; i < bytes.length; i++) {
+            int keep = Math.clamp(bits - 8L * i, 0, 8);
+            bytes[i] &= (byte) (0xff << (8 - keep));
+        }
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e); // cannot happen for an address's own bytes
+        }
+    }
+
+    private void acquire(Flow flow, long bytes) throws IOException {
+        lock.lock();
+        try {
+            double start = Math.max(virtualTime, flow.finish);
+            flow.finish = start + (double) bytes / flow.weight;
+            Request request = new Request(flow, bytes, start, nextSequence++, lock.newCondition());
+            waiting.add(request);
+            while (true) {
+                long now = System.nanoTime();
+                dispatch(now);
+                if (!waiting.contains(request)) {
+                    return;
+                }
+                long wait = Math.min(nanosUntilTurn(request, now), max_wait_nanos);
+                try {
+                    request.turn().awaitNanos(Math.max(wait, 1));
+                } catch (InterruptedException e) {
+                    waiting.remove(request);
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Grants waiting requests in order while the global bucket has tokens, skipping those
+     * whose client bucket is dry, and wakes the threads it granted.
+     */
+    private void dispatch(long now) {
+        if (global != null) {
+            global.refill(now);
+        }
+        var requests = waiting.iterator();
+        while (requests.hasNext()) {
+            if (global != null && global.tokens <= 0) {
+                return;
+            }
+            Request request = requests.next();
+            Bucket client = request.flow().client;
+            if (client != null) {
+                client.refill(now);
+                if (client.tokens <= 0) {
+                    continue;
+                }
+                client.tokens -= request.bytes();
+            }
+            if (global != null) {
+                global.tokens -= request.bytes();
+            }
+            virtualTime = Math.max(virtualTime, request.start());
+            requests.remove();
+            request.turn().signal();
+        }
+    }
+
+    /**
+     * When the request should be grantable: once its client bucket has refilled and the
+     * global bucket has covered the requests queued ahead of it. Whoever dispatches first
+     * grants it, so this only needs to be right for the request at the head.
+     */
+    private long nanosUntilTurn(Request request, long now) {
+        long wait = 0;
+        Bucket client = request.flow().client;
+        if (client != null) {
+            client.refill(now);
+            wait = client.nanosUntil(0);
+        }
+        if (global != null) {
+            long ahead = 0;
+            for (Request other : waiting) {
+                if (other == request) {
+                    break;
+                }
+                ahead += other.bytes();
+            }
+            wait = Math.max(wait, global.nanosUntil(ahead));
+        }
+        return wait;
+    }
+
+    private void close(Flow flow) {
+        if (flow.key == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (--flow.client.flows == 0) {
+                clients.remove(flow.key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * One transfer's place in the schedule. Not thread safe: a transfer asks from one thread.
+     */
+    public static final class Flow implements AutoCloseable {
+        private final BandwidthScheduler scheduler; // null for unlimited
+        private final InetAddress key;
+        private final Bucket client;
+        private final int weight;
+        private double finish; // virtual time its last grant ends at, guarded by the scheduler's lock
+
+        private Flow(BandwidthScheduler scheduler, InetAddress key, Bucket client, int weight) {
+            this.scheduler = scheduler;
+            this.key = key;
+            this.client = client;
+            this.weight = weight;
+        }
+
+        /**
+         * Blocks until the transfer may send {@code bytes} more.
+         */
+        public void acquire(long bytes) throws IOException {
+            if (scheduler != null) {
+                scheduler.acquire(this, bytes);
+            }
+        }
+
+        /**
+         * How much to send per {@link #acquire} when moving a large body.
+         */
+        public long quantum() {
+            return scheduler != null ? quantum : Long.MAX_VALUE;
+        }
+
+        @Override
+        public void close() {
+            if (scheduler != null) {
+                scheduler.close(this);
+            }
+        }
+    }
+
+    /**
+     * Tokens are bytes. A grant may take the bucket below zero, so a request larger than
+     * the burst still goes through, and the debt delays the next one.
+     */
+    private static final class Bucket {
+        final double rate;  // bytes per nanosecond
+        final double burst;
+        double tokens;
+        long refilled = System.nanoTime();
+        int flows;          // open flows charged to a client bucket
+
+        Bucket(long bytesPerSecond) {
+            this.rate = bytesPerSecond / 1e9;
+            this.burst = Math.max(quantum, bytesPerSecond * burst_seconds);
+            this.tokens = burst;
+        }
+
+        void refill(long now) {
+            tokens = Math.min(burst, tokens + (now - refilled) * rate);
+            refilled = now;
+        }
+
+        /**
+         * Time until the bucket holds more than {@code bytes} tokens.
+         */
+        long nanosUntil(long bytes) {
+            double missing = bytes - tokens;
+            return missing < 0 ? 0 : (long) (missing / rate) + 1;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package core;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Batch mode shared by the clients: runs a manifest of gets and puts in one process on a
+ * fixed number of worker threads and prints an aggregate summary. Each thread opens one
+ * {@link Worker} and keeps it for all of its transfers, so sockets, buffers and the
+ * resolved server address are set up once per thread rather than once per file. A worker
+ * that can pipeline (the TCP session) is kept up to {@code depth} transfers ahead.
+ * <p>
+ * A manifest has one operation per line; blank lines and lines starting with # are skipped:
+ * <pre>
+ * get &lt;remote&gt; [&lt;local&gt;]
+ * put &lt;local&gt; [&lt;remote&gt;]
+ * </pre>
+ * A put whose local name has a glob in its last element ({@code put images/*.img}) expands
+ * to every matching file, with the remote name taken as a directory prefix if given.
+ */
+public final class Batch {
+
+    public record Operation(boolean put, String localName, String remoteName) {
+        @Override
+        public String toString() {
+            return put ? "put " + localName + " -> " + remoteName : "get " + remoteName + " -> " + localName;
+        }
+    }
+
+    /**
+     * One thread's transfer engine. Each call yields whether the transfer succeeded; a
+     * synchronous worker finishes the transfer first and returns a completed future, a
+     * pipelining one returns once the request is on its way.
+     */
+    public interface Worker extends AutoCloseable {
+        CompletableFuture<Boolean> get(String remoteName, String localName) throws IOException;
+
+        CompletableFuture<Boolean> put(String localName, String remoteName) throws IOException;
+
+        @Override
+        void close();
+    }
+
+    public interface WorkerFactory {
+        Worker open() throws IOException;
+    }
+
+    private Batch() {
+    }
+
+    /**
+     * Reads a manifest file, or standard input for "-".
+     */
+    public static List<Operation> parse(String manifest) throws IOException {
+        BufferedReader reader = "-".equals(manifest)
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Path.of(manifest));
+        List<Operation> operations = new ArrayList<>();
+        try (reader) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields.length < 2 || fields.length > 3 || !("get".equals(fields[0]) || "put".equals(fields[0]))) {
+                    throw new IOException("Line " + number + ": expected get|put <name> [<name>]: " + line);
+                }
+                String other = fields.length == 3 ? fields[2] : null;
+                if ("get".equals(fields[0])) {
+                    operations.add(new Operation(false, other != null ? other : fields[1], fields[1]));
+                } else if (isGlob(fields[1])) {
+                    expand(fields[1], other, operations);
+                } else {
+                    operations.add(new Operation(true, fields[1], other != null ? other : fields[1]));
+                }
+            }
+        }
+        return operations;
+    }
+
+    private static boolean isGlob(String name) {
+        String last = Path.of(name).getFileName().toString();
+        return last.chars().anyMatch(c -> c == '*' || c == '?' || c == '[' || c == '{');
+    }
+
+    private static void expand(String pattern, String remotePrefix, List<Operation> operations) throws IOException {
+        Path glob = Path.of(pattern);
+        Path dir = glob.getParent() != null ? glob.getParent() : Path.of(".");
+        List<Path> matches = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, glob.getFileName().toString())) {
+            for (Path match : stream) {
+                if (Files.isRegularFile(match)) {
+                    matches.add(match);
+                }
+            }
+        }
+        matches.sort(null);
+        for (Path match : matches) {
+            String local = glob.getParent() != null ? match.toString() : match.getFileName().toString();
+            String remote = remotePrefix != null ? remotePrefix + "/" + match.getFileName() : local;
+            operations.add(new Operation(true, local, remote));
+        }
+    }
+
+    /**
+     * Runs the operations on up to {@code parallel} threads, reporting failures as they
+     * happen and a summary at the end.
+     *
+     * @return true if every transfer succeeded
+     */
+    public static boolean run(List<Operation> operations, int parallel, WorkerFactory workers) throws InterruptedException {
+        return run(operations, parallel, 1, workers);
+    }
+
+    /**
+     * As {@link #run(List, int, WorkerFactory)}, with each thread keeping up to {@code depth}
+     * transfers started before it waits for the oldest.
+     */
+    public static boolean run(List<Operation> operations, int parallel, int depth, WorkerFactory workers)
+            throws InterruptedException {
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+        long started = System.nanoTime();
+
+        Thread[] threads = new Thread[Math.max(1, Math.min(parallel, operations.size()))];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                Queue<Started> inFlight = new ArrayDeque<>();
+                try (Worker worker = workers.open()) {
+                    int index;
+                    while ((index = next.getAndIncrement()) < operations.size()) {
+                        inFlight.add(start(worker, operations.get(index)));
+                        if (inFlight.size() >= depth) {
+                            finish(inFlight.remove(), failed, bytes);
+                        }
+                    }
+                    while (!inFlight.isEmpty()) {
+                        finish(inFlight.remove(), failed, bytes);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Batch worker failed: " + e.getMessage());
+                }
+            }, "batch-" + t);
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // operations a dead worker never reached count as failed too
+        int notRun = Math.max(0, operations.size() - Math.min(next.get(), operations.size()));
+        int failures = failed.get() + notRun;
+        double seconds = (System.nanoTime() - started) / 1e9;
+        System.out.printf("Batch: %d transfers, %d ok, %d failed in %.2fs%n",
+                operations.size(), operations.size() - failures, failures, seconds);
+        System.out.printf("Throughput: %.1f transfers/s, %.2f MB/s (%.1f MB)%n",
+                (operations.size() - failures) / seconds, bytes.get() / seconds / (1024 * 1024), bytes.get() / (1024.0 * 1024));
+        return failures == 0;
+    }
+
+    private record Started(Operation operation, CompletableFuture<Boolean> ok) {
+    }
+
+    private static Started start(Worker worker, Operation operation) {
+        try {
+            if (operation.put()) {
+                return new Started(operation, worker.put(operation.localName(), operation.remoteName()));
+            }
+            Path parent = Path.of(operation.localName()).toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            return new Started(operation, worker.get(operation.remoteName(), operation.localName()));
+        } catch (IOException e) {
+            System.err.println("I/O Error: " + e.getMessage());
+            return new Started(operation, CompletableFuture.completedFuture(false));
+        }
+    }
+
+    /**
+     * Waits for a transfer and counts its bytes, or reports it as failed.
+     */
+    private static void finish(Started started, AtomicInteger failed, AtomicLong bytes) {
+        long size = -1;
+        try {
+            if (started.ok().join()) {
+                size = Files.size(Path.of(started.operation().localName()));
+            }
+        } catch (IOException e) {
+            System.err.println("I/O Error: " + e.getMessage());
+        }
+        if (size < 0) {
+            failed.incrementAndGet();
+            System.err.println("Failed: " + started.operation());
+        } else {
+            bytes.addAndGet(size);
+        }
+    }
+}
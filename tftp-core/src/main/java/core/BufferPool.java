@@ -0,0 +1,70 @@
+package core;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of equally sized packet buffers. A transfer acquires its window slots and receive
+ * buffer once and recycles them, so nothing is allocated per block; released buffers are
+ * handed to the next transfer. Thread-safe, so one pool can serve every transfer of a
+ * block size, and bounded, so a burst of transfers is not held on to forever.
+ */
+public final class BufferPool {
+
+    private final int bufferSize;
+    private final boolean direct;
+    private final int maxFree;
+    private final ConcurrentLinkedDeque<ByteBuffer> free = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger freeCount = new AtomicInteger();
+
+    /**
+     * @param bufferSize bytes per buffer, normally 4 + the negotiated block size
+     * @param direct     direct buffers for channels, heap buffers for DatagramSocket
+     */
+    public BufferPool(int bufferSize, boolean direct) {
+        this(bufferSize, direct, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxFree released buffers kept for reuse; any more are left to the GC
+     */
+    public BufferPool(int bufferSize, boolean direct, int maxFree) {
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.maxFree = maxFree;
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer != null) {
+            freeCount.decrementAndGet();
+        } else {
+            buffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        return buffer.clear();
+    }
+
+    public ByteBuffer[] acquire(int count) {
+        ByteBuffer[] buffers = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            buffers[i] = acquire();
+        }
+        return buffers;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+            return;
+        }
+        if (freeCount.incrementAndGet() <= maxFree) {
+            free.push(buffer);
+        } else {
+            freeCount.decrementAndGet(); // the pool is full
+        }
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+}
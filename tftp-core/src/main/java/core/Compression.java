@@ -0,0 +1,160 @@
+package core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflated bodies for the TCP transport. A client sets {@link #flag} in the opcode of a
+ * protocol 2 or 3 request to ask for them. A compressed body is a run of frames,
+ * {@code [int n][n bytes of deflate output]}, ended by {@code [int 0]}. The frames keep
+ * the body's end explicit, so a session's next reply is never read into the inflater.
+ * The raw length still goes in the request or reply header, and the receiver checks it.
+ */
+public final class Compression {
+
+    public static final int flag = 0x40;          // opcode bit asking for deflated bodies
+    public static final int encoding_raw = 0;     // reply encoding byte: the server sends the body as is
+    public static final int encoding_deflate = 1; // reply encoding byte: the body is deflate frames
+    private static final int frame_bytes = 64 * 1024;
+
+    /**
+     * Where inflated bytes go.
+     */
+    public interface Sink {
+        void write(byte[] data, int offset, int length) throws IOException;
+    }
+
+    private Compression() {
+    }
+
+    /**
+     * Deflates {@code count} bytes of {@code source} into frames on {@code out}.
+     *
+     * @return the bytes written to {@code out}
+     */
+    public static long deflate(InputStream source, long count, int level, DataOutputStream out) throws IOException {
+        Deflater deflater = new Deflater(level);
+        byte[] input = new byte[frame_bytes];
+        byte[] output = new byte[frame_bytes];
+        long written = 0;
+        try {
+            for (long remaining = count; remaining > 0; ) {
+                int read = source.read(input, 0, (int) Math.min(input.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("File shrank during transfer");
+                }
+                remaining -= read;
+                deflater.setInput(input, 0, read);
+                while (!deflater.needsInput()) {
+                    written += frame(deflater, output, out);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                written += frame(deflater, output, out);
+            }
+            out.writeInt(0);
+            return written + 4;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static int frame(Deflater deflater, byte[] output, DataOutputStream out) throws IOException {
+        int length = deflater.deflate(output);
+        if (length == 0) {
+            return 0;
+        }
+        out.writeInt(length);
+        out.write(output, 0, length);
+        return 4 + length;
+    }
+
+    /**
+     * Reads frames up to the end marker and inflates them into {@code sink}. Fails if they
+     * do not hold exactly {@code expected} bytes, so a peer cannot make us store more than
+     * it announced.
+     *
+     * @return the inflated length, which is {@code expected}
+     */
+    public static long inflate(DataInputStream in, long expected, Sink sink) throws IOException {
+        Inflater inflater = new Inflater();
+        byte[] input = new byte[frame_bytes];
+        byte[] output = new byte[frame_bytes];
+        long produced = 0;
+        try {
+            int length;
+            while ((length = readFrameLength(in)) != 0) {
+                in.readFully(input, 0, length);
+                inflater.setInput(input, 0, length);
+                while (true) {
+                    int inflated = inflater.inflate(output);
+                    if (inflated == 0) {
+                        if (inflater.needsDictionary()) {
+                            throw new IOException("Compressed body needs a dictionary");
+                        }
+                        break; // needs the next frame, or the stream is complete
+                    }
+                    produced += inflated;
+                    if (produced > expected) {
+                        throw new IOException("Compressed body holds more than the " + expected + " bytes announced");
+                    }
+                    sink.write(output, 0, inflated);
+                }
+            }
+            if (produced != expected || !inflater.finished()) {
+                throw new EOFException("Compressed body ended after " + produced + " of " + expected + " bytes");
+            }
+            return produced;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed body: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Reads past a compressed body without inflating it.
+     */
+    public static void skip(DataInputStream in) throws IOException {
+        int length;
+        while ((length = readFrameLength(in)) != 0) {
+            in.skipNBytes(length);
+        }
+    }
+
+    private static int readFrameLength(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            throw new EOFException("Connection closed inside a compressed body");
+        }
+        if (length < 0 || length > frame_bytes) {
+            throw new IOException("Bad compressed frame length: " + length);
+        }
+        return length;
+    }
+
+    /**
+     * The whole file as frames, end marker included, for a {@link FileCache} of
+     * compressed forms.
+     */
+    public static ByteBuffer load(Path path, long size, int level) throws IOException {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream((int) Math.min(size / 2 + 64, Integer.MAX_VALUE));
+        try (InputStream source = Files.newInputStream(path)) {
+            deflate(source, size, level, new DataOutputStream(frames));
+        }
+        return ByteBuffer.allocateDirect(frames.size()).put(frames.toByteArray()).flip();
+    }
+}
@@ -0,0 +1,241 @@
+package core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-wide cache of whole files held in direct (off-heap) buffers, evicted least
+ * recently used first once the byte budget is exceeded. Every lookup compares the
+ * file's size and mtime with the cached copy, so a replaced file is reloaded on its
+ * next read. Concurrent transfers of the same file share one buffer through
+ * read-only views, and only the first of them loads it from disk.
+ * <p>
+ * What is held per file is up to the {@link Loader}: the contents by default, or a
+ * derived form such as the file compressed ({@link Compression#load}).
+ */
+public final class FileCache {
+
+    /**
+     * Produces what the cache holds for a file of the given size.
+     */
+    public interface Loader {
+        ByteBuffer load(Path path, long size) throws IOException;
+    }
+
+    private final long budgetBytes;
+    private final Loader loader;
+    private final long maxEntryBytes; // larger files bypass the cache instead of flushing it
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public FileCache(long budgetBytes) {
+        this(budgetBytes, FileCache::read);
+    }
+
+    public FileCache(long budgetBytes, Loader loader) {
+        this.budgetBytes = budgetBytes;
+        this.loader = loader;
+        this.maxEntryBytes = Math.min(budgetBytes / 4, Integer.MAX_VALUE);
+    }
+
+    public boolean isEnabled() {
+        return budgetBytes > 0;
+    }
+
+    /**
+     * Returns a read-only view of the file positioned at 0, or null when the cache is
+     * disabled or the file is too large to cache.
+     */
+    public ByteBuffer get(Path path) throws IOException {
+        if (!isEnabled()) {
+            return null;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        if (attributes.size() > maxEntryBytes) {
+            misses.increment();
+            return null;
+        }
+
+        Entry entry;
+        boolean load = false;
+        synchronized (this) {
+            entry = entries.get(path);
+            if (entry != null && !entry.matches(attributes)) {
+                remove(path);
+                entry = null;
+            }
+            if (entry == null) {
+                entry = new Entry(attributes.size(), attributes.lastModifiedTime());
+                entries.put(path, entry);
+                cachedBytes += entry.charged;
+                evictOver(path);
+                load = true;
+            }
+        }
+
+        if (load) {
+            misses.increment();
+            entry.load(path, loader);
+            if (!entry.contents.isCompletedExceptionally()) {
+                recharge(path, entry, entry.contents.join().remaining());
+            }
+        } else {
+            hits.increment();
+        }
+        try {
+            return entry.contents.join().asReadOnlyBuffer();
+        } catch (CompletionException e) {
+            synchronized (this) {
+                if (entries.remove(path, entry)) {
+                    cachedBytes -= entry.charged;
+                }
+            }
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Opens the file for sequential reading, served from memory when it is cacheable.
+     */
+    public InputStream open(Path path) throws IOException {
+        ByteBuffer contents = get(path);
+        return contents != null ? new BufferInputStream(contents) : Files.newInputStream(path);
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public synchronized long cachedBytes() {
+        return cachedBytes;
+    }
+
+    private void remove(Path path) {
+        Entry entry = entries.remove(path);
+        if (entry != null) {
+            cachedBytes -= entry.charged;
+        }
+    }
+
+    /**
+     * Charges an entry for what its loader produced rather than the file size it was
+     * admitted with; the two differ for derived forms.
+     */
+    private synchronized void recharge(Path path, Entry entry, long bytes) {
+        if (entries.get(path) == entry) {
+            cachedBytes += bytes - entry.charged;
+            entry.charged = bytes;
+            evictOver(path);
+        }
+    }
+
+    private static ByteBuffer read(Path path, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // keep reading until the buffer is full or the file ends early
+            }
+            return buffer.flip();
+        }
+    }
+
+    private void evictOver(Path keep) {
+        Iterator<Map.Entry<Path, Entry>> eldest = entries.entrySet().iterator();
+        while (cachedBytes > budgetBytes && eldest.hasNext()) {
+            Map.Entry<Path, Entry> candidate = eldest.next();
+            if (!candidate.getKey().equals(keep)) {
+                cachedBytes -= candidate.getValue().charged;
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    private static final class Entry {
+        final long size;
+        final FileTime modified;
+        final CompletableFuture<ByteBuffer> contents = new CompletableFuture<>();
+        long charged; // bytes counted against the budget, guarded by the cache
+
+        Entry(long size, FileTime modified) {
+            this.size = size;
+            this.modified = modified;
+            this.charged = size;
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() && modified.equals(attributes.lastModifiedTime());
+        }
+
+        void load(Path path, Loader loader) {
+            try {
+                contents.complete(loader.load(path, size));
+            } catch (IOException | RuntimeException e) {
+                contents.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = Math.clamp(n, 0, buffer.remaining());
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
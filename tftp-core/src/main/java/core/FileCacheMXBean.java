@@ -0,0 +1,16 @@
+package core;
+
+/**
+ * JMX view of a server's {@link FileCache}, registered as
+ * {@code tftp:type=FileCache,server=<udp|tcp>}.
+ */
+public interface FileCacheMXBean {
+
+    long getHits();
+
+    long getMisses();
+
+    long getEvictions();
+
+    long getCachedBytes();
+}
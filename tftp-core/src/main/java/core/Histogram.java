@@ -0,0 +1,78 @@
+package core;
+
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-bucket histogram in the Prometheus style: each observation lands in the first
+ * bucket whose upper bound is not below it, and an implicit +Inf bucket takes the rest.
+ * Recording is a couple of striped adds, so any number of transfers can share one.
+ */
+public final class Histogram {
+
+    private final double[] bounds;
+    private final LongAdder[] buckets; // one more than bounds, for +Inf
+    private final DoubleAdder sum = new DoubleAdder();
+
+    /**
+     * @param bounds bucket upper bounds in ascending order
+     */
+    public Histogram(double... bounds) {
+        this.bounds = bounds.clone();
+        this.buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void observe(double value) {
+        int bucket = 0;
+        while (bucket < bounds.length && value > bounds[bucket]) {
+            bucket++;
+        }
+        buckets[bucket].increment();
+        sum.add(value);
+    }
+
+    public double[] bounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * Observations at or below each bound, the last entry being the +Inf bucket and so the
+     * total count. Buckets are read one after another, not as one atomic snapshot.
+     */
+    public long[] cumulativeCounts() {
+        long[] counts = new long[buckets.length];
+        long running = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            running += buckets[i].sum();
+            counts[i] = running;
+        }
+        return counts;
+    }
+
+    public double sum() {
+        return sum.sum();
+    }
+
+    /**
+     * The cumulative counts keyed by their Prometheus {@code le} label, for JMX.
+     */
+    public Map<String, Long> toMap() {
+        long[] counts = cumulativeCounts();
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (int i = 0; i < bounds.length; i++) {
+            map.put(label(bounds[i]), counts[i]);
+        }
+        map.put("+Inf", counts[bounds.length]);
+        return map;
+    }
+
+    static String label(double bound) {
+        return BigDecimal.valueOf(bound).stripTrailingZeros().toPlainString();
+    }
+}
@@ -0,0 +1,185 @@
+package core;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Publishes a server's {@link TransferMetrics} and {@link FileCache} counters as MXBeans
+ * on the platform MBean server, and optionally as Prometheus text on
+ * {@code http://127.0.0.1:<port>/metrics}. The HTTP endpoint only listens on loopback;
+ * scrape it through an agent on the host.
+ */
+public final class MetricsExporter {
+
+    private static final String content_type = "text/plain; version=0.0.4; charset=utf-8";
+
+    private MetricsExporter() {
+    }
+
+    /**
+     * Registers both MXBeans, replacing any left by an earlier server in this JVM.
+     */
+    public static void register(TransferMetrics metrics, FileCache cache) {
+        register(metrics, cache, null);
+    }
+
+    /**
+     * Also registers {@code tftp:type=CompressedCache} for a server that keeps compressed
+     * forms in a second cache (null if it does not).
+     */
+    public static void register(TransferMetrics metrics, FileCache cache, FileCache compressed) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            register(server, new ObjectName("tftp:type=Transfers,server=" + metrics.server()), metrics);
+            register(server, new ObjectName("tftp:type=FileCache,server=" + metrics.server()), bean(cache));
+            if (compressed != null) {
+                register(server, new ObjectName("tftp:type=CompressedCache,server=" + metrics.server()), bean(compressed));
+            }
+        } catch (JMException e) {
+            System.err.println("JMX registration failed: " + e.getMessage());
+        }
+    }
+
+    private static FileCacheMXBean bean(FileCache cache) {
+        return new FileCacheMXBean() {
+            @Override
+            public long getHits() {
+                return cache.hits();
+            }
+
+            @Override
+            public long getMisses() {
+                return cache.misses();
+            }
+
+            @Override
+            public long getEvictions() {
+                return cache.evictions();
+            }
+
+            @Override
+            public long getCachedBytes() {
+                return cache.cachedBytes();
+            }
+        };
+    }
+
+    private static void register(MBeanServer server, ObjectName name, Object bean) throws JMException {
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(bean, name);
+    }
+
+    /**
+     * Starts the Prometheus endpoint on its own daemon thread.
+     */
+    public static HttpServer serve(int port, TransferMetrics metrics, FileCache cache) throws IOException {
+        return serve(port, metrics, cache, null);
+    }
+
+    /**
+     * Starts the Prometheus endpoint, including a second cache of compressed forms (or null).
+     */
+    public static HttpServer serve(int port, TransferMetrics metrics, FileCache cache, FileCache compressed) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> respond(exchange, render(metrics, cache, compressed)));
+        Thread thread = new Thread(http::start, "metrics-http");
+        thread.setDaemon(true);
+        thread.start(); // the dispatcher inherits daemon status from the thread that starts it
+        return http;
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", content_type);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Renders every metric in the Prometheus text exposition format; {@code compressed} is
+     * a server's second cache of compressed forms, or null.
+     */
+    public static String render(TransferMetrics metrics, FileCache cache, FileCache compressed) {
+        StringBuilder out = new StringBuilder(4096);
+        String server = "server=\"" + metrics.server() + "\"";
+
+        single(out, "tftp_active_transfers", "gauge", "Transfers in progress.", server, metrics.getActiveTransfers());
+        single(out, "tftp_transfers_started_total", "counter", "Transfers accepted.", server, metrics.getTransfersStarted());
+        single(out, "tftp_transfers_completed_total", "counter", "Transfers that completed.", server, metrics.getTransfersCompleted());
+        header(out, "tftp_transfers_failed_total", "counter", "Transfers that failed, by reason.");
+        for (Map.Entry<String, Long> failure : metrics.getTransfersFailed().entrySet()) {
+            sample(out, "tftp_transfers_failed_total", server + ",reason=\"" + failure.getKey() + "\"", failure.getValue());
+        }
+        single(out, "tftp_bytes_sent_total", "counter", "Payload bytes sent, retransmissions included.", server, metrics.getBytesSent());
+        single(out, "tftp_bytes_received_total", "counter", "Payload bytes accepted from clients.", server, metrics.getBytesReceived());
+        single(out, "tftp_blocks_retransmitted_total", "counter", "DATA blocks sent again.", server, metrics.getBlocksRetransmitted());
+        single(out, "tftp_timeouts_total", "counter", "Retransmission timeouts.", server, metrics.getTimeouts());
+        single(out, "tftp_duplicate_requests_total", "counter", "Repeated requests folded into the transfer in flight.",
+                server, metrics.getDuplicateRequests());
+        header(out, "tftp_errors_sent_total", "counter", "ERROR replies sent, by TFTP error type.");
+        for (int code = 0; code < TransferMetrics.errorTypes(); code++) {
+            sample(out, "tftp_errors_sent_total",
+                    server + ",code=\"" + code + "\",type=\"" + TransferMetrics.errorType(code) + "\"", metrics.errorsSent(code));
+        }
+        histogram(out, "tftp_rtt_seconds", "Round-trip time samples.", server, metrics.rttSeconds());
+        histogram(out, "tftp_transfer_duration_seconds", "Time from request to completion.", server, metrics.transferSeconds());
+        histogram(out, "tftp_transfer_throughput_bytes_per_second", "File bytes over duration, per completed transfer.",
+                server, metrics.throughputBytesPerSecond());
+
+        single(out, "tftp_file_cache_hits_total", "counter", "Reads served from the file cache.", server, cache.hits());
+        single(out, "tftp_file_cache_misses_total", "counter", "Reads that loaded or bypassed the file cache.", server, cache.misses());
+        single(out, "tftp_file_cache_evictions_total", "counter", "Files evicted from the file cache.", server, cache.evictions());
+        single(out, "tftp_file_cache_bytes", "gauge", "Bytes held by the file cache.", server, cache.cachedBytes());
+        if (compressed != null) {
+            single(out, "tftp_compressed_cache_hits_total", "counter", "Compressed reads served from the compressed cache.",
+                    server, compressed.hits());
+            single(out, "tftp_compressed_cache_misses_total", "counter", "Compressed reads that loaded or bypassed the compressed cache.",
+                    server, compressed.misses());
+            single(out, "tftp_compressed_cache_evictions_total", "counter", "Files evicted from the compressed cache.",
+                    server, compressed.evictions());
+            single(out, "tftp_compressed_cache_bytes", "gauge", "Bytes held by the compressed cache.", server, compressed.cachedBytes());
+        }
+        return out.toString();
+    }
+
+    private static void single(StringBuilder out, String name, String type, String help, String labels, long value) {
+        header(out, name, type, help);
+        sample(out, name, labels, value);
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, Object value) {
+        out.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    private static void histogram(StringBuilder out, String name, String help, String labels, Histogram histogram) {
+        header(out, name, "histogram", help);
+        double[] bounds = histogram.bounds();
+        long[] counts = histogram.cumulativeCounts();
+        for (int i = 0; i < bounds.length; i++) {
+            sample(out, name + "_bucket", labels + ",le=\"" + Histogram.label(bounds[i]) + "\"", counts[i]);
+        }
+        sample(out, name + "_bucket", labels + ",le=\"+Inf\"", counts[bounds.length]);
+        sample(out, name + "_sum", labels, histogram.sum());
+        sample(out, name + "_count", labels, counts[bounds.length]);
+    }
+}
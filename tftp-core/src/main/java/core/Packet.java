@@ -0,0 +1,213 @@
+package core;
+
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Flyweight TFTP packet codec over a ByteBuffer, heap or direct. A packet always starts at
+ * index 0 and ends at the buffer's limit; decoders read it in place with absolute gets, and
+ * encoders write the header (and strings) in place and leave the buffer flipped, ready to
+ * send. One instance is re-wrapped around pooled buffers, so DATA and ACK traffic creates no
+ * garbage. Only requests, OACKs and errors build strings.
+ */
+public final class Packet {
+
+    public static final int op_read_request = 1;
+    public static final int op_write_request = 2;
+    public static final int op_data = 3;
+    public static final int op_acknowledgment = 4;
+    public static final int op_error = 5;
+    public static final int op_option_ack = 6;
+
+    public static final int header_size = 4;               // opcode and block number / error code
+    public static final int max_packet_size = 4 + 65464;   // largest RFC 2348 block plus header
+
+    private ByteBuffer buffer;
+
+    public Packet wrap(ByteBuffer buffer) {
+        this.buffer = buffer;
+        return this;
+    }
+
+    /**
+     * Wraps a heap buffer and points the datagram at its backing array, so the same pair can
+     * be sent and received into without allocating.
+     */
+    public Packet wrap(ByteBuffer buffer, DatagramPacket datagram) {
+        this.buffer = buffer;
+        datagram.setData(buffer.array(), buffer.arrayOffset(), buffer.capacity());
+        return this;
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Marks the first {@code length} bytes of the buffer as the packet just received.
+     */
+    public Packet received(int length) {
+        buffer.clear().limit(length);
+        return this;
+    }
+
+    /**
+     * Points the datagram at the encoded packet before a send.
+     */
+    public DatagramPacket fill(DatagramPacket datagram) {
+        datagram.setData(buffer.array(), buffer.arrayOffset(), buffer.limit());
+        return datagram;
+    }
+
+    public int length() {
+        return buffer.limit();
+    }
+
+    public int opcode() {
+        return buffer.limit() >= 2 ? buffer.getShort(0) & 0xffff : -1;
+    }
+
+    /**
+     * The block number of a DATA or ACK packet as sent, modulo 65536.
+     */
+    public int blockNumber() {
+        return buffer.getShort(2) & 0xffff;
+    }
+
+    public int errorCode() {
+        return buffer.getShort(2) & 0xffff;
+    }
+
+    public String errorMessage() {
+        return buffer.limit() > header_size ? string(header_size) : "";
+    }
+
+    public int payloadLength() {
+        return buffer.limit() - header_size;
+    }
+
+    /**
+     * Positions the buffer on the payload of a DATA packet, for reading it out.
+     */
+    public ByteBuffer payload() {
+        return buffer.position(header_size);
+    }
+
+    /**
+     * Reads the NUL-terminated string at {@code index}.
+     */
+    public String string(int index) {
+        int end = terminator(index);
+        byte[] bytes = new byte[end - index];
+        buffer.get(index, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the index just past the NUL-terminated string at {@code index}.
+     */
+    public int skipString(int index) {
+        return Math.min(terminator(index) + 1, buffer.limit());
+    }
+
+    /**
+     * Reads name/value option pairs (RFC 2347) from {@code index} to the end of the packet.
+     * Names are lower-cased.
+     */
+    public Map<String, String> options(int index) {
+        Map<String, String> options = new LinkedHashMap<>();
+        while (index < buffer.limit()) {
+            String name = string(index);
+            index = skipString(index);
+            String value = index < buffer.limit() ? string(index) : "";
+            index = skipString(index);
+            if (!name.isEmpty()) {
+                options.put(name.toLowerCase(), value);
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Expands a 16-bit block number from the wire to the full counter closest to
+     * {@code reference}, so block numbers keep counting across the 65535 -> 0 rollover.
+     */
+    public static int unwrapBlock(int wireBlock, int reference) {
+        return reference + (short) (wireBlock - reference);
+    }
+
+    public Packet ack(int blockNumber) {
+        buffer.clear();
+        buffer.putShort((short) op_acknowledgment).putShort((short) blockNumber).flip();
+        return this;
+    }
+
+    /**
+     * Completes a DATA packet whose payload the caller already placed at index 4.
+     */
+    public Packet data(int blockNumber, int payloadLength) {
+        buffer.clear().limit(header_size + payloadLength);
+        buffer.putShort(0, (short) op_data).putShort(2, (short) blockNumber);
+        return this;
+    }
+
+    public Packet error(int errorCode, String errorMsg) {
+        buffer.clear();
+        buffer.putShort((short) op_error).putShort((short) errorCode);
+        putString(errorMsg);
+        buffer.flip();
+        return this;
+    }
+
+    /**
+     * Encodes an RRQ/WRQ in octet mode with the given options.
+     */
+    public Packet request(int opcode, String fileName, Map<String, String> options) {
+        buffer.clear();
+        buffer.putShort((short) opcode);
+        putString(fileName);
+        putString("octet");
+        putOptions(options);
+        buffer.flip();
+        return this;
+    }
+
+    public Packet optionAck(Map<String, String> options) {
+        buffer.clear();
+        buffer.putShort((short) op_option_ack);
+        putOptions(options);
+        buffer.flip();
+        return this;
+    }
+
+    /**
+     * Copies the encoded packet out, for the few packets that are kept for retransmission.
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[buffer.limit()];
+        buffer.get(0, bytes);
+        return bytes;
+    }
+
+    private void putOptions(Map<String, String> options) {
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            putString(option.getKey());
+            putString(option.getValue());
+        }
+    }
+
+    private void putString(String value) {
+        buffer.put(value.getBytes(StandardCharsets.UTF_8)).put((byte) 0);
+    }
+
+    private int terminator(int index) {
+        int end = index;
+        while (end < buffer.limit() && buffer.get(end) != 0) {
+            end++;
+        }
+        return end;
+    }
+}
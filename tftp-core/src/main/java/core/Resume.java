@@ -0,0 +1,68 @@
+package core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Digests for resuming transfers. A download that stopped part way asks to continue from
+ * the bytes it has, with the SHA-256 of those bytes; the server only continues if its own
+ * copy starts with the same ones. An upload sends the digest of the whole file, which
+ * names the partial the server kept from an earlier attempt at the same content.
+ */
+public final class Resume {
+
+    private static final int digest_chars = 64;
+
+    private Resume() {
+    }
+
+    /**
+     * SHA-256 of the first {@code length} bytes of the file, as lowercase hex, or null if
+     * the file is shorter.
+     */
+    public static String digest(Path file, long length) throws IOException {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JDK ships SHA-256
+        }
+        byte[] buffer = new byte[64 * 1024];
+        long remaining = length;
+        try (InputStream in = Files.newInputStream(file)) {
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    return null;
+                }
+                sha.update(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        return HexFormat.of().formatHex(sha.digest());
+    }
+
+    /**
+     * Whether a peer's value is a digest in the form {@link #digest} produces. Checked
+     * before one is used in a file name.
+     */
+    public static boolean isDigest(String value) {
+        return value != null && value.length() == digest_chars && value.chars().allMatch(c -> (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'));
+    }
+
+    /**
+     * Where a read of {@code file} can continue from: {@code offset} if the file's first
+     * {@code offset} bytes have the given digest, otherwise 0.
+     */
+    public static long verify(Path file, long offset, String digest) throws IOException {
+        if (offset <= 0 || !isDigest(digest) || offset > Files.size(file)) {
+            return 0;
+        }
+        return digest.equals(digest(file, offset)) ? offset : 0;
+    }
+}
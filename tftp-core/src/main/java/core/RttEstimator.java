@@ -0,0 +1,58 @@
+package core;
+
+/**
+ * Per-transfer retransmission timeout in the style of RFC 6298: a smoothed round-trip
+ * time and its variance set the timeout, and every expiry doubles it until a fresh
+ * sample arrives. Samples must only come from packets that were sent once (Karn).
+ * A server estimator also feeds every sample and timeout into its {@link TransferMetrics}.
+ */
+public final class RttEstimator {
+
+    public static final long initial_rto_millis = 1000;
+    public static final long min_rto_millis = 10;
+    public static final long max_rto_millis = 4000;
+    public static final long give_up_millis = 15000; // a transfer without progress for this long is abandoned
+
+    private double srtt = -1;
+    private double rttvar;
+    private long rto = initial_rto_millis;
+    private final TransferMetrics metrics; // null when nothing is recorded
+
+    public RttEstimator() {
+        this(null);
+    }
+
+    public RttEstimator(TransferMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void sample(long rttNanos) {
+        if (metrics != null) {
+            metrics.rtt(rttNanos);
+        }
+        double rtt = rttNanos / 1_000_000.0;
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+            srtt = 0.875 * srtt + 0.125 * rtt;
+        }
+        rto = clamp(Math.round(srtt + Math.max(1, 4 * rttvar)));
+    }
+
+    public void backoff() {
+        if (metrics != null) {
+            metrics.timeout();
+        }
+        rto = clamp(rto * 2);
+    }
+
+    public long timeoutMillis() {
+        return rto;
+    }
+
+    private static long clamp(long millis) {
+        return Math.max(min_rto_millis, Math.min(max_rto_millis, millis));
+    }
+}
@@ -0,0 +1,262 @@
+package core;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-wide transfer counters and histograms. Everything is a striped adder, so the
+ * handler threads and event loops record without contending; readers (JMX and the
+ * Prometheus endpoint, see {@link MetricsExporter}) sum them on demand.
+ * <p>
+ * Each transfer records through the {@link Transfer} returned by {@link #begin}, which
+ * also times it and measures its throughput once it ends.
+ */
+public final class TransferMetrics implements TransferMetricsMXBean {
+
+    public static final String failure_timeout = "timeout";       // the peer went silent
+    public static final String failure_peer_error = "peer_error"; // the peer sent an ERROR
+    public static final String failure_io_error = "io_error";     // a socket or disk failure on our side
+
+    /** RFC 1350 error codes 0-7 and the RFC 2347 option refusal, 8. */
+    private static final String[] error_types = {"not_defined", "file_not_found", "access_violation", "disk_full",
+            "illegal_operation", "unknown_transfer_id", "file_exists", "no_such_user", "option_refused"};
+
+    private final String server;
+    private final LongAdder active = new LongAdder();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final Map<String, LongAdder> failed = new ConcurrentHashMap<>();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder blocksRetransmitted = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder duplicateRequests = new LongAdder();
+    private final LongAdder[] errorsSent = new LongAdder[error_types.length];
+
+    private final Histogram rttSeconds = new Histogram(
+            0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5);
+    private final Histogram transferSeconds = new Histogram(
+            0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30, 60, 300);
+    private final Histogram throughputBytesPerSecond = new Histogram(
+            16 << 10, 64 << 10, 256 << 10, 1 << 20, 4 << 20, 16 << 20, 64 << 20, 256 << 20, 1 << 30);
+
+    /**
+     * @param server the label that tells the servers apart, "udp" or "tcp"
+     */
+    public TransferMetrics(String server) {
+        this.server = server;
+        for (int i = 0; i < errorsSent.length; i++) {
+            errorsSent[i] = new LongAdder();
+        }
+    }
+
+    public String server() {
+        return server;
+    }
+
+    /**
+     * Counts a transfer as active until its handle records how it ended.
+     */
+    public Transfer begin() {
+        return new Transfer();
+    }
+
+    /**
+     * Counts an ERROR packet (or, over TCP, error reply) sent with the given TFTP error code.
+     */
+    public void errorSent(int code) {
+        errorsSent[code >= 0 && code < errorsSent.length ? code : 0].increment();
+    }
+
+    /**
+     * Records a round-trip sample; called by {@link RttEstimator}.
+     */
+    public void rtt(long nanos) {
+        rttSeconds.observe(nanos / 1e9);
+    }
+
+    /**
+     * Records a retransmission timeout; called by {@link RttEstimator}.
+     */
+    public void timeout() {
+        timeouts.increment();
+    }
+
+    /**
+     * Counts a retransmitted RRQ/WRQ that was folded into the transfer already serving it.
+     */
+    public void duplicateRequest() {
+        duplicateRequests.increment();
+    }
+
+    public Histogram rttSeconds() {
+        return rttSeconds;
+    }
+
+    public Histogram transferSeconds() {
+        return transferSeconds;
+    }
+
+    public Histogram throughputBytesPerSecond() {
+        return throughputBytesPerSecond;
+    }
+
+    public static String errorType(int code) {
+        return error_types[code];
+    }
+
+    public long errorsSent(int code) {
+        return errorsSent[code].sum();
+    }
+
+    public static int errorTypes() {
+        return error_types.length;
+    }
+
+    @Override
+    public long getActiveTransfers() {
+        return active.sum();
+    }
+
+    @Override
+    public long getTransfersStarted() {
+        return started.sum();
+    }
+
+    @Override
+    public long getTransfersCompleted() {
+        return completed.sum();
+    }
+
+    @Override
+    public Map<String, Long> getTransfersFailed() {
+        Map<String, Long> byReason = new TreeMap<>();
+        failed.forEach((reason, count) -> byReason.put(reason, count.sum()));
+        return byReason;
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getBlocksRetransmitted() {
+        return blocksRetransmitted.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getDuplicateRequests() {
+        return duplicateRequests.sum();
+    }
+
+    @Override
+    public Map<String, Long> getErrorsSent() {
+        Map<String, Long> byType = new TreeMap<>();
+        for (int i = 0; i < error_types.length; i++) {
+            byType.put(error_types[i], errorsSent[i].sum());
+        }
+        return byType;
+    }
+
+    @Override
+    public Map<String, Long> getRttSecondsHistogram() {
+        return rttSeconds.toMap();
+    }
+
+    @Override
+    public Map<String, Long> getTransferSecondsHistogram() {
+        return transferSeconds.toMap();
+    }
+
+    @Override
+    public Map<String, Long> getThroughputBytesPerSecondHistogram() {
+        return throughputBytesPerSecond.toMap();
+    }
+
+    /**
+     * One transfer's view of the metrics. Owned by the thread or event loop running the
+     * transfer; the first of {@link #completed}, {@link #failed} or {@link #end} decides
+     * how it is counted and the others are ignored, so a finally block can always call end.
+     */
+    public final class Transfer {
+        private final long startedAt = System.nanoTime();
+        private long payloadBytes; // file bytes moved, without retransmissions
+        private boolean ended;
+
+        private Transfer() {
+            started.increment();
+            active.increment();
+        }
+
+        /**
+         * Counts one DATA payload (or TCP body chunk) sent to the peer.
+         */
+        public void sent(long bytes, boolean retransmission) {
+            bytesSent.add(bytes);
+            if (retransmission) {
+                blocksRetransmitted.increment();
+            } else {
+                payloadBytes += bytes;
+            }
+        }
+
+        /**
+         * Counts payload accepted from the peer.
+         */
+        public void received(long bytes) {
+            bytesReceived.add(bytes);
+            payloadBytes += bytes;
+        }
+
+        /**
+         * Credits the transfer with the whole file for its throughput when most of it went out
+         * shared with other transfers (multicast) and was counted as sent only once.
+         */
+        public void delivered(long fileBytes) {
+            payloadBytes = Math.max(payloadBytes, fileBytes);
+        }
+
+        public void completed() {
+            if (ended) {
+                return;
+            }
+            ended = true;
+            active.decrement();
+            completed.increment();
+            double seconds = (System.nanoTime() - startedAt) / 1e9;
+            transferSeconds.observe(seconds);
+            if (seconds > 0) {
+                throughputBytesPerSecond.observe(payloadBytes / seconds);
+            }
+        }
+
+        public void failed(String reason) {
+            if (ended) {
+                return;
+            }
+            ended = true;
+            active.decrement();
+            failed.computeIfAbsent(reason, r -> new LongAdder()).increment();
+        }
+
+        /**
+         * Counts the transfer as an I/O failure unless it already ended.
+         */
+        public void end() {
+            failed(failure_io_error);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package core;
+
+import java.util.Map;
+
+/**
+ * JMX view of a server's {@link TransferMetrics}, registered as
+ * {@code tftp:type=Transfers,server=<udp|tcp>}.
+ */
+public interface TransferMetricsMXBean {
+
+    long getActiveTransfers();
+
+    long getTransfersStarted();
+
+    long getTransfersCompleted();
+
+    /**
+     * Failed transfers by reason: timeout, peer_error or io_error.
+     */
+    Map<String, Long> getTransfersFailed();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getBlocksRetransmitted();
+
+    long getTimeouts();
+
+    long getDuplicateRequests();
+
+    /**
+     * ERROR replies sent, by TFTP error type.
+     */
+    Map<String, Long> getErrorsSent();
+
+    Map<String, Long> getRttSecondsHistogram();
+
+    Map<String, Long> getTransferSecondsHistogram();
+
+    Map<String, Long> getThroughputBytesPerSecondHistogram();
+}
@@ -0,0 +1,370 @@
+package core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Upload sink that decouples the network from the disk. Incoming blocks are copied into
+ * chunk-sized buffers whose file offsets are chunk aligned; full chunks are written by a
+ * shared I/O executor while the caller goes on acknowledging. A bounded set of buffers
+ * per upload provides back-pressure. Data lands in a temporary file next to the target
+ * which is renamed over it atomically by {@link #commit()}; closing without a commit
+ * discards the upload, unless it was opened with {@link #resumable}.
+ */
+public final class WriteBehindFile implements AutoCloseable {
+
+    public static final int chunk_size = 256 * 1024;
+    private static final int buffers_per_upload = 4;
+
+    private static final ExecutorService io = Executors.newFixedThreadPool(
+            Math.min(4, Runtime.getRuntime().availableProcessors()),
+            Thread.ofPlatform().name("write-behind-", 0).daemon().factory());
+
+    private final Path target;
+    private final Path temp;
+    private final Path keepAs; // where a resumable upload's partial goes if it is not committed, else null
+    private final FileChannel file;
+    private final long syncEveryBytes; // -1 never, 0 on commit only, otherwise also every N bytes
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(buffers_per_upload);
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private int allocated;
+    private ByteBuffer current;
+    private long position;        // file offset where the current buffer will be written
+    private long resumedFrom;     // bytes kept from an earlier attempt, which this one continues after
+    private long unsynced;        // bytes written since the last fsync, guarded by this
+    private boolean committed;
+
+    public WriteBehindFile(Path target, long reserveBytes, long syncEveryBytes) throws IOException {
+        this(target.toAbsolutePath(), tempFor(target.toAbsolutePath(), ""), null, syncEveryBytes);
+        if (reserveBytes > 0) {
+            try {
+                file.write(ByteBuffer.allocate(1), reserveBytes - 1); // reserve the announced size up front
+            } catch (IOException e) {
+                file.close();
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+        }
+    }
+
+    private WriteBehindFile(Path target, Path temp, Path keepAs, long syncEveryBytes) throws IOException {
+        this.target = target;
+        this.temp = temp;
+        this.keepAs = keepAs;
+        this.syncEveryBytes = syncEveryBytes;
+        this.file = FileChannel.open(temp, StandardOpenOption.WRITE);
+        this.position = this.resumedFrom = file.size();
+    }
+
+    /**
+     * Creates an empty temporary file next to the target. Unlike Files.createTempFile,
+     * which makes it owner-only, this leaves the mode to the umask, as writing the target
+     * directly would.
+     */
+    private static Path tempFor(Path target, String tag) throws IOException {
+        while (true) {
+            Path temp = target.resolveSibling("." + target.getFileName() + "." + tag
+                    + Long.toUnsignedString(ThreadLocalRandom.current().nextLong()) + ".part");
+            try {
+                return Files.createFile(temp);
+            } catch (FileAlreadyExistsException e) {
+                // taken by another upload of the same name: pick another
+            }
+        }
+    }
+
+    /**
+     * Opens an upload of the content with the given digest (see {@link Resume}) that
+     * survives failure: a close without a commit keeps what reached the disk as
+     * {@code .<name>.<digest>.resume}, and the next upload of the same content continues
+     * after it, from {@link #resumedFrom()}. Only a partial kept that way is trusted; one
+     * left by a crash is still a .part file, and may have holes. Nothing is reserved up
+     * front, so the partial's length is always what was written.
+     */
+    public static WriteBehindFile resumable(Path target, String digest, long syncEveryBytes) throws IOException {
+        Path absolute = target.toAbsolutePath();
+        String tag = digest.substring(0, 16);
+        Path kept = absolute.resolveSibling("." + absolute.getFileName() + "." + tag + ".resume");
+        Path temp = tempFor(absolute, tag + ".");
+        try {
+            Files.move(kept, temp, StandardCopyOption.REPLACE_EXISTING); // taken, so a concurrent upload starts over
+        } catch (NoSuchFileException e) {
+            // nothing kept: start from the beginning
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        return new WriteBehindFile(absolute, temp, kept, syncEveryBytes);
+    }
+
+    /**
+     * Parses the --fsync setting: "none", "close", or a number of megabytes between syncs.
+     */
+    public static long parseSyncPolicy(String policy) {
+        if ("none".equals(policy)) {
+            return -1;
+        }
+        if ("close".equals(policy)) {
+            return 0;
+        }
+        return Math.max(1, Long.parseLong(policy)) * 1024 * 1024;
+    }
+
+    /**
+     * Copies the bytes into the pipeline, blocking only while every buffer of this upload
+     * is still queued for the disk.
+     */
+    public void write(byte[] data, int offset, int length) throws IOException {
+        checkFailure();
+        while (length > 0) {
+            if (current == null) {
+                current = takeBuffer(true);
+            }
+            int n = Math.min(length, current.remaining());
+            current.put(data, offset, n);
+            offset += n;
+            length -= n;
+            if (!current.hasRemaining()) {
+                submitCurrent();
+            }
+        }
+    }
+
+    /**
+     * Non-blocking variant for event loops: copies the packet's remaining bytes and returns
+     * true, or consumes nothing and returns false if a buffer would have to be waited for.
+     */
+    public boolean offer(ByteBuffer data) throws IOException {
+        checkFailure();
+        if (current == null || current.remaining() < data.remaining()) {
+            ByteBuffer next = takeBuffer(false);
+            if (next == null) {
+                return false;
+            }
+            if (current != null) {
+                int spill = data.limit();
+                data.limit(data.position() + current.remaining());
+                current.put(data);
+                data.limit(spill);
+                submitCurrent();
+            }
+            current = next;
+        }
+        current.put(data);
+        if (!current.hasRemaining()) {
+            submitCurrent();
+        }
+        return true;
+    }
+
+    /**
+     * Moves {@code count} bytes from a channel straight into the file, for callers that
+     * already stream large bodies (no buffering, nothing to coalesce).
+     */
+    public long transferFrom(ReadableByteChannel source, long count) throws IOException {
+        awaitWrites();
+        long done = 0;
+        while (done < count) {
+            long received = file.transferFrom(source, position + done, count - done);
+            if (received == 0) {
+                break;
+            }
+            done += received;
+        }
+        position += done;
+        synced(done);
+        return done;
+    }
+
+    /**
+     * Writes out what is buffered, syncs according to the policy, trims any unused
+     * reservation and atomically replaces the target with the finished file.
+     */
+    public void commit() throws IOException {
+        awaitWrites();
+        file.truncate(position);
+        if (syncEveryBytes >= 0) {
+            file.force(true);
+        }
+        file.close();
+        keepPermissions();
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        committed = true;
+    }
+
+    /**
+     * Gives the upload the permissions of the file it replaces, as overwriting that file in
+     * place used to.
+     */
+    private void keepPermissions() throws IOException {
+        try {
+            Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+        } catch (NoSuchFileException | UnsupportedOperationException e) {
+            // a new file, or no POSIX permissions here: the umask applies
+        }
+    }
+
+    /**
+     * Runs {@link #commit()} on its own virtual thread so an event loop never waits for the
+     * disk (not on the I/O executor, whose threads the commit waits for).
+     */
+    public CompletableFuture<Void> commitAsync() {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        Thread.startVirtualThread(() -> {
+            try {
+                commit();
+                done.complete(null);
+            } catch (IOException | RuntimeException e) {
+                done.completeExceptionally(e);
+            }
+        });
+        return done;
+    }
+
+    /**
+     * Runs {@link #close()} on its own virtual thread, for the same reason as {@link #commitAsync()}:
+     * discarding an upload waits for its queued writes.
+     */
+    public void closeAsync() {
+        Thread.startVirtualThread(this::close);
+    }
+
+    public long resumedFrom() {
+        return resumedFrom;
+    }
+
+    public long bytesWritten() {
+        return position + (current != null ? current.position() : 0);
+    }
+
+    @Override
+    public void close() {
+        if (committed) {
+            return;
+        }
+        boolean intact;
+        try {
+            awaitWrites();
+            intact = true;
+        } catch (IOException e) {
+            intact = false;
+        }
+        try {
+            file.close();
+            if (keepAs != null && intact) {
+                Files.move(temp, keepAs, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException ignored) {}
+    }
+
+    private ByteBuffer takeBuffer(boolean wait) throws IOException {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null && allocated < buffers_per_upload) {
+            allocated++;
+            buffer = ByteBuffer.allocate(chunk_size);
+        }
+        if (buffer == null && wait) {
+            try {
+                buffer = free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the disk");
+            }
+        }
+        if (buffer != null) {
+            checkFailure();
+            buffer.clear();
+        }
+        return buffer;
+    }
+
+    private void submitCurrent() {
+        ByteBuffer chunk = current.flip();
+        long offset = position;
+        position += chunk.remaining();
+        current = null;
+        io.execute(() -> {
+            try {
+                int length = chunk.remaining();
+                while (chunk.hasRemaining()) {
+                    file.write(chunk, offset + length - chunk.remaining());
+                }
+                synced(length);
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            } finally {
+                free.add(chunk);
+            }
+        });
+    }
+
+    private void awaitWrites() throws IOException {
+        if (current != null) {
+            if (current.position() > 0) {
+                submitCurrent();
+            } else {
+                free.add(current);
+                current = null;
+            }
+        }
+        try {
+            List<ByteBuffer> idle = new ArrayList<>(allocated);
+            while (idle.size() < allocated) { // every buffer back means every write has finished
+                idle.add(free.take());
+            }
+            free.addAll(idle);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the disk");
+        }
+        checkFailure();
+    }
+
+    private void synced(long bytes) throws IOException {
+        if (syncEveryBytes <= 0) {
+            return;
+        }
+        boolean sync;
+        synchronized (this) {
+            unsynced += bytes;
+            sync = unsynced >= syncEveryBytes;
+            if (sync) {
+                unsynced = 0;
+            }
+        }
+        if (sync) {
+            file.force(false);
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable t = failure.get();
+        if (t != null) {
+            throw t instanceof IOException e ? e : new IOException(t);
+        }
+    }
+}
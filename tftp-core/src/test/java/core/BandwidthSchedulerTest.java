@@ -0,0 +1,73 @@
+package core;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BandwidthSchedulerTest {
+
+    @Test
+    void rateSuffixesArePowersOf1024() {
+        assertEquals(500, BandwidthScheduler.parseRate("500"));
+        assertEquals(10 * 1024, BandwidthScheduler.parseRate("10k"));
+        assertEquals(10L * 1024 * 1024, BandwidthScheduler.parseRate("10M"));
+        assertEquals(2L * 1024 * 1024 * 1024, BandwidthScheduler.parseRate("2g"));
+    }
+
+    @Test
+    void withoutLimitsEveryFlowIsUnlimited() {
+        BandwidthScheduler scheduler = new BandwidthScheduler(0, 0, 32, List.of());
+
+        assertFalse(scheduler.isEnabled());
+        assertSame(BandwidthScheduler.unlimited, scheduler.open(InetAddress.getLoopbackAddress(), "boot.img"));
+    }
+
+    @Test
+    void firstMatchingClassSetsTheWeight() {
+        BandwidthScheduler.PriorityClass boot = BandwidthScheduler.PriorityClass.parse("pxelinux.*=16");
+
+        assertEquals(16, boot.weight());
+        assertTrue(boot.matches("pxelinux.0"));
+        assertTrue(boot.matches("boot/pxelinux.cfg")); // the last element is enough
+        assertFalse(boot.matches("images/disk.img"));
+    }
+
+    @Test
+    void busyFlowsShareByWeight() throws InterruptedException {
+        BandwidthScheduler scheduler = new BandwidthScheduler(512 * 1024, 0, 32,
+                List.of(BandwidthScheduler.PriorityClass.parse("boot.*=4")));
+        AtomicLong heavy = new AtomicLong();
+        AtomicLong light = new AtomicLong();
+        long from = System.nanoTime() + 300_000_000L; // past the initial burst
+        long until = from + 1_200_000_000L;
+
+        Thread a = Thread.ofPlatform().start(() -> send(scheduler.open(InetAddress.getLoopbackAddress(), "boot.0"), heavy, from, until));
+        Thread b = Thread.ofPlatform().start(() -> send(scheduler.open(InetAddress.getLoopbackAddress(), "disk.img"), light, from, until));
+        a.join();
+        b.join();
+
+        double ratio = (double) heavy.get() / light.get();
+        assertTrue(ratio > 2.5 && ratio < 6, "weight 4 got " + ratio + " times the bytes of weight 1");
+    }
+
+    private static void send(BandwidthScheduler.Flow flow, AtomicLong granted, long from, long until) {
+        try (flow) {
+            while (System.nanoTime() < until) {
+                flow.acquire(16 * 1024);
+                if (System.nanoTime() > from) {
+                    granted.addAndGet(16 * 1024);
+                }
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BatchTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void getAndPutDefaultTheOtherName() throws IOException {
+        List<Batch.Operation> operations = parse("get pxelinux.0\nput notes.txt\n");
+
+        assertEquals(List.of(new Batch.Operation(false, "pxelinux.0", "pxelinux.0"),
+                new Batch.Operation(true, "notes.txt", "notes.txt")), operations);
+    }
+
+    @Test
+    void secondNameIsLocalForGetAndRemoteForPut() throws IOException {
+        List<Batch.Operation> operations = parse("get pxelinux.0 boot/pxelinux.0\nput notes.txt incoming/notes.txt\n");
+
+        assertEquals(List.of(new Batch.Operation(false, "boot/pxelinux.0", "pxelinux.0"),
+                new Batch.Operation(true, "notes.txt", "incoming/notes.txt")), operations);
+    }
+
+    @Test
+    void blankLinesAndCommentsAreSkipped() throws IOException {
+        List<Batch.Operation> operations = parse("\n# boot files\n   \nget pxelinux.0\n");
+
+        assertEquals(1, operations.size());
+    }
+
+    @Test
+    void globPutExpandsUnderTheRemotePrefix() throws IOException {
+        Path logs = Files.createDirectory(dir.resolve("logs"));
+        Files.write(logs.resolve("b.log"), new byte[1]);
+        Files.write(logs.resolve("a.log"), new byte[1]);
+        Files.write(logs.resolve("c.txt"), new byte[1]);
+
+        List<Batch.Operation> operations = parse("put " + logs + "/*.log incoming\n");
+
+        assertEquals(List.of(new Batch.Operation(true, logs.resolve("a.log").toString(), "incoming/a.log"),
+                new Batch.Operation(true, logs.resolve("b.log").toString(), "incoming/b.log")), operations);
+    }
+
+    @Test
+    void badLineNamesItsNumber() throws IOException {
+        Path manifest = Files.writeString(dir.resolve("manifest"), "get pxelinux.0\nfetch initrd.img\n");
+
+        IOException e = assertThrows(IOException.class, () -> Batch.parse(manifest.toString()));
+
+        assertTrue(e.getMessage().startsWith("Line 2:"), e.getMessage());
+    }
+
+    private List<Batch.Operation> parse(String manifest) throws IOException {
+        return Batch.parse(Files.writeString(dir.resolve("manifest"), manifest).toString());
+    }
+}
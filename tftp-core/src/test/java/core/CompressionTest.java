@@ -0,0 +1,107 @@
+package core;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CompressionTest {
+
+    @Test
+    void bodyOfManyFramesRoundTrips() throws IOException {
+        byte[] data = new byte[400 * 1024];
+        new Random(7).nextBytes(data); // incompressible, so the deflate output spans several frames
+        byte[] frames = deflate(data);
+
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+        assertEquals(data.length, Compression.inflate(input(frames), data.length, inflated::write));
+
+        assertArrayEquals(data, inflated.toByteArray());
+    }
+
+    @Test
+    void emptyBodyIsJustTheEndMarker() throws IOException {
+        byte[] frames = deflate(new byte[0]);
+
+        assertEquals(0, Compression.inflate(input(frames), 0, (data, offset, length) -> {
+        }));
+    }
+
+    @Test
+    void inflateStopsAtTheEndMarker() throws IOException {
+        byte[] frames = deflate(new byte[1000]);
+        byte[] followed = Arrays.copyOf(frames, frames.length + 2);
+        followed[frames.length] = 42; // the next reply in a session
+        DataInputStream in = input(followed);
+
+        Compression.inflate(in, 1000, (data, offset, length) -> {
+        });
+
+        assertEquals(42, in.readUnsignedByte());
+    }
+
+    @Test
+    void truncatedBodyFails() throws IOException {
+        byte[] frames = deflate(new byte[100 * 1024]);
+        byte[] truncated = Arrays.copyOf(frames, frames.length / 2);
+
+        assertThrows(EOFException.class, () -> Compression.inflate(input(truncated), 100 * 1024, (data, offset, length) -> {
+        }));
+    }
+
+    @Test
+    void bodyLongerThanAnnouncedFails() throws IOException {
+        byte[] frames = deflate(new byte[10000]);
+
+        assertThrows(IOException.class, () -> Compression.inflate(input(frames), 9999, (data, offset, length) -> {
+        }));
+    }
+
+    @Test
+    void bodyShorterThanAnnouncedFails() throws IOException {
+        byte[] frames = deflate(new byte[10000]);
+
+        assertThrows(EOFException.class, () -> Compression.inflate(input(frames), 10001, (data, offset, length) -> {
+        }));
+    }
+
+    @Test
+    void oversizedFrameLengthIsRejected() {
+        byte[] frame = {0x7f, 0, 0, 0}; // far beyond a 64 KB frame
+
+        assertThrows(IOException.class, () -> Compression.skip(input(frame)));
+    }
+
+    @Test
+    void skipReadsPastTheEndMarker() throws IOException {
+        byte[] frames = deflate(new byte[200 * 1024]);
+        byte[] followed = Arrays.copyOf(frames, frames.length + 1);
+        followed[frames.length] = 7;
+        DataInputStream in = input(followed);
+
+        Compression.skip(in);
+
+        assertEquals(7, in.readUnsignedByte());
+    }
+
+    private static byte[] deflate(byte[] data) throws IOException {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        long written = Compression.deflate(new ByteArrayInputStream(data), data.length, 6, new DataOutputStream(frames));
+        assertEquals(frames.size(), written);
+        return frames.toByteArray();
+    }
+
+    private static DataInputStream input(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+}
@@ -0,0 +1,37 @@
+package core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FileCacheTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void failedLoadReleasesItsCharge() throws IOException {
+        Path file = Files.write(dir.resolve("boot.img"), new byte[1000]);
+        boolean[] fail = {true};
+        FileCache cache = new FileCache(64 * 1024, (path, size) -> {
+            if (fail[0]) {
+                throw new IOException("unreadable");
+            }
+            return ByteBuffer.allocateDirect((int) size);
+        });
+
+        assertThrows(IOException.class, () -> cache.get(file));
+        assertEquals(0, cache.cachedBytes());
+
+        fail[0] = false;
+        assertEquals(1000, cache.get(file).remaining());
+        assertEquals(1000, cache.cachedBytes());
+    }
+}
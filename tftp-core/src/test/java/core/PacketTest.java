@@ -0,0 +1,31 @@
+package core;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PacketTest {
+
+    @Test
+    void blockAfter65535CountsOn() {
+        assertEquals(65536, Packet.unwrapBlock(0, 65535));
+        assertEquals(65537, Packet.unwrapBlock(1, 65535));
+    }
+
+    @Test
+    void lateBlockFromBeforeRolloverStaysBehind() {
+        assertEquals(65535, Packet.unwrapBlock(65535, 65536));
+        assertEquals(65530, Packet.unwrapBlock(65530, 65540));
+    }
+
+    @Test
+    void secondRolloverCountsOnToo() {
+        assertEquals(131072, Packet.unwrapBlock(0, 131071));
+    }
+
+    @Test
+    void blockWithoutRolloverIsUnchanged() {
+        assertEquals(0, Packet.unwrapBlock(0, 0));
+        assertEquals(8, Packet.unwrapBlock(8, 1));
+    }
+}
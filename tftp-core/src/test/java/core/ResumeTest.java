@@ -0,0 +1,74 @@
+package core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResumeTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void digestCoversOnlyThePrefix() throws IOException, NoSuchAlgorithmException {
+        byte[] contents = new byte[200 * 1024];
+        Arrays.fill(contents, 100 * 1024, contents.length, (byte) 1);
+        Path file = Files.write(dir.resolve("image.bin"), contents);
+
+        String expected = HexFormat.of().formatHex(
+                MessageDigest.getInstance("SHA-256").digest(Arrays.copyOf(contents, 70000)));
+
+        assertEquals(expected, Resume.digest(file, 70000));
+    }
+
+    @Test
+    void digestOfMoreThanTheFileIsNull() throws IOException {
+        Path file = Files.write(dir.resolve("short.bin"), new byte[10]);
+
+        assertNull(Resume.digest(file, 11));
+    }
+
+    @Test
+    void verifyContinuesAfterMatchingBytes() throws IOException {
+        Path file = Files.write(dir.resolve("server.bin"), new byte[5000]);
+        String digest = Resume.digest(file, 3000);
+
+        assertEquals(3000, Resume.verify(file, 3000, digest));
+    }
+
+    @Test
+    void verifyStartsOverWhenTheBytesDiffer() throws IOException {
+        Path file = Files.write(dir.resolve("server.bin"), new byte[5000]);
+        Path other = Files.write(dir.resolve("client.bin"), new byte[]{1, 2, 3});
+
+        assertEquals(0, Resume.verify(file, 3, Resume.digest(other, 3)));
+    }
+
+    @Test
+    void verifyStartsOverPastTheEndOfTheFile() throws IOException {
+        Path file = Files.write(dir.resolve("server.bin"), new byte[100]);
+
+        assertEquals(0, Resume.verify(file, 200, "0".repeat(64)));
+    }
+
+    @Test
+    void onlyLowercaseSha256HexIsADigest() {
+        assertTrue(Resume.isDigest("ab".repeat(32)));
+        assertFalse(Resume.isDigest("AB".repeat(32)));
+        assertFalse(Resume.isDigest("ab".repeat(31)));
+        assertFalse(Resume.isDigest("../".repeat(21) + "a"));
+        assertFalse(Resume.isDigest(null));
+    }
+}
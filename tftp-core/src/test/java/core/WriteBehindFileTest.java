@@ -0,0 +1,64 @@
+package core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class WriteBehindFileTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void newUploadGetsTheUmaskPermissions() throws IOException {
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        Path reference = Files.createFile(dir.resolve("reference")); // what the umask gives a new file
+
+        Path target = dir.resolve("up.bin");
+        upload(target, new byte[]{1, 2, 3});
+
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(target));
+        assertEquals(Files.getPosixFilePermissions(reference), Files.getPosixFilePermissions(target));
+    }
+
+    @Test
+    void replacedFileKeepsItsPermissions() throws IOException {
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        Path target = Files.write(dir.resolve("tx.txt"), new byte[]{9});
+        Files.setPosixFilePermissions(target, PosixFilePermissions.fromString("rw-r-----"));
+
+        upload(target, new byte[]{4, 5});
+
+        assertArrayEquals(new byte[]{4, 5}, Files.readAllBytes(target));
+        assertEquals(PosixFilePermissions.fromString("rw-r-----"), Files.getPosixFilePermissions(target));
+    }
+
+    @Test
+    void failedReservationLeavesNoTempFile() throws IOException {
+        Path target = dir.resolve("huge.img");
+
+        assertThrows(IOException.class, () -> new WriteBehindFile(target, Long.MAX_VALUE, -1)); // past any file size limit
+
+        try (Stream<Path> left = Files.list(dir)) {
+            assertEquals(0, left.count());
+        }
+    }
+
+    private static void upload(Path target, byte[] contents) throws IOException {
+        try (WriteBehindFile upload = new WriteBehindFile(target, contents.length, -1)) {
+            upload.write(contents, 0, contents.length);
+            upload.commit();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package loadgen;
+
+import java.util.Arrays;
+
+/**
+ * Completion times of one simulated client, kept exactly so the tail percentiles are not
+ * smoothed away by bucketing. Each client records into its own instance; the run merges
+ * them once all clients have stopped.
+ */
+final class LatencyRecorder {
+
+    private long[] samples = new long[1024];
+    private int count;
+    private boolean sorted;
+
+    void record(long nanos) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = nanos;
+        sorted = false;
+    }
+
+    void addAll(LatencyRecorder other) {
+        if (count + other.count > samples.length) {
+            samples = Arrays.copyOf(samples, Math.max(samples.length * 2, count + other.count));
+        }
+        System.arraycopy(other.samples, 0, samples, count, other.count);
+        count += other.count;
+        sorted = false;
+    }
+
+    int count() {
+        return count;
+    }
+
+    /**
+     * Nearest-rank percentile in nanoseconds, or 0 with no samples.
+     */
+    long percentile(double percent) {
+        if (count == 0) {
+            return 0;
+        }
+        if (!sorted) {
+            Arrays.sort(samples, 0, count);
+            sorted = true;
+        }
+        int rank = (int) Math.ceil(percent / 100 * count);
+        return samples[Math.max(0, Math.min(count, rank) - 1)];
+    }
+
+    long max() {
+        return percentile(100);
+    }
+}
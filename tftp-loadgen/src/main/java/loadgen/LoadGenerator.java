@@ -0,0 +1,310 @@
+package loadgen;
+
+import client.TFTPTCPClient;
+import client.TFTPUDPClient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Drives many simulated TFTP clients against a UDP or TCP server and reports throughput,
+ * goodput, retransmissions and completion-time percentiles.
+ * <p>
+ * Closed loop (the default): every client starts its next transfer as soon as the last one
+ * ends, which finds the throughput the server sustains with that many clients. Open loop
+ * ({@code --rate}): transfers arrive on a fixed schedule whatever the server is doing and
+ * wait for a free client, and their time is measured from the scheduled arrival, so an
+ * overloaded server shows up as growing latency and a backlog rather than as fewer requests.
+ */
+public class LoadGenerator {
+
+    private static final int report_interval_millis = 1000;
+
+    private static String serverIP;
+    private static boolean tcp = false;
+    private static int clients = 16;
+    private static double rate = 0;          // transfers per second; 0 runs closed loop
+    private static int durationSeconds = 10;
+    private static double putRatio = 0;      // fraction of transfers that are uploads
+    private static String[] getFiles = new String[0];
+    private static long[] putSizes = {64 * 1024};
+    private static String putName = "loadgen";
+    private static boolean virtualThreads = false;
+
+    private static final AtomicLong completed = new AtomicLong();
+    private static final AtomicLong failed = new AtomicLong();
+    private static final AtomicLong bytes = new AtomicLong();
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: java -jar loadgen.jar <serverIP> [--transport udp|tcp] [--clients <n>] [--rate <per second>]"
+                    + " [--duration <s>] [--put-ratio <0..1>] [--get <file,...>] [--put-sizes <bytes,...>] [--put-name <prefix>]"
+                    + " [--blksize <n>] [--windowsize <n>] [--protocol 1|2|3] [--virtual-threads]");
+            return;
+        }
+
+        serverIP = args[0];
+        int blockSize = 512;
+        int windowSize = 1;
+        int protocol = 2;
+        for (int i = 1; i < args.length; i++) {
+            if ("--transport".equals(args[i]) && i + 1 < args.length) {
+                tcp = "tcp".equals(args[++i]);
+            } else if ("--clients".equals(args[i]) && i + 1 < args.length) {
+                clients = Math.max(1, Integer.parseInt(args[++i]));
+            } else if ("--rate".equals(args[i]) && i + 1 < args.length) {
+                rate = Math.max(0, Double.parseDouble(args[++i]));
+            } else if ("--duration".equals(args[i]) && i + 1 < args.length) {
+                durationSeconds = Math.max(1, Integer.parseInt(args[++i]));
+            } else if ("--put-ratio".equals(args[i]) && i + 1 < args.length) {
+                putRatio = Math.max(0, Math.min(1, Double.parseDouble(args[++i])));
+            } else if ("--get".equals(args[i]) && i + 1 < args.length) {
+                getFiles = args[++i].split(",");
+            } else if ("--put-sizes".equals(args[i]) && i + 1 < args.length) {
+                putSizes = Stream.of(args[++i].split(",")).mapToLong(LoadGenerator::parseSize).toArray();
+            } else if ("--put-name".equals(args[i]) && i + 1 < args.length) {
+                putName = args[++i];
+            } else if ("--blksize".equals(args[i]) && i + 1 < args.length) {
+                blockSize = Integer.parseInt(args[++i]);
+            } else if ("--windowsize".equals(args[i]) && i + 1 < args.length) {
+                windowSize = Integer.parseInt(args[++i]);
+            } else if ("--protocol".equals(args[i]) && i + 1 < args.length) {
+                protocol = Integer.parseInt(args[++i]);
+            } else if ("--virtual-threads".equals(args[i])) {
+                virtualThreads = true;
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                return;
+            }
+        }
+        if (putRatio < 1 && getFiles.length == 0) {
+            System.err.println("Pass --get with the server files to download, or --put-ratio 1 for uploads only");
+            return;
+        }
+
+        TFTPUDPClient.configure(blockSize, windowSize, true);
+        TFTPTCPClient.configure(protocol);
+
+        Path dir = null;
+        try {
+            dir = Files.createTempDirectory("tftp-loadgen");
+            Path[] putFiles = new Path[putSizes.length];
+            for (int i = 0; i < putSizes.length; i++) {
+                putFiles[i] = createFile(dir.resolve("put-" + putSizes[i] + ".bin"), putSizes[i]);
+            }
+            run(dir, putFiles);
+        } catch (IOException e) {
+            System.err.println("Load test failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (dir != null) {
+                deleteRecursively(dir);
+            }
+        }
+    }
+
+    private static void run(Path dir, Path[] putFiles) throws InterruptedException {
+        System.out.printf("%s load on %s (%s): %d clients, %s, %ds, %.0f%% puts%n",
+                rate > 0 ? "Open-loop" : "Closed-loop", serverIP, tcp ? "TCP" : "UDP", clients,
+                rate > 0 ? rate + " transfers/s" : "back to back", durationSeconds, putRatio * 100);
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long retransmitsBefore = TFTPUDPClient.retransmissions();
+        BlockingQueue<Long> arrivals = new LinkedBlockingQueue<>();
+        LatencyRecorder[] gets = new LatencyRecorder[clients];
+        LatencyRecorder[] puts = new LatencyRecorder[clients];
+        Thread[] workers = new Thread[clients];
+        Thread.Builder builder = virtualThreads ? Thread.ofVirtual() : Thread.ofPlatform().daemon();
+        for (int i = 0; i < clients; i++) {
+            int index = i;
+            gets[i] = new LatencyRecorder();
+            puts[i] = new LatencyRecorder();
+            workers[i] = builder.name("client-" + i)
+                    .start(() -> runClient(index, dir, putFiles, rate > 0 ? arrivals : null, end, gets[index], puts[index]));
+        }
+        if (rate > 0) {
+            Thread.ofPlatform().daemon().name("arrivals").start(() -> schedule(arrivals, start, end));
+        }
+
+        long lastCompleted = 0;
+        long lastBytes = 0;
+        for (long next = start + TimeUnit.MILLISECONDS.toNanos(report_interval_millis); next <= end;
+             next += TimeUnit.MILLISECONDS.toNanos(report_interval_millis)) {
+            LockSupport.parkNanos(next - System.nanoTime());
+            long done = completed.get();
+            long moved = bytes.get();
+            System.out.printf("%5ds %8d transfers/s %10.2f MB/s %6d failed %6d queued%n",
+                    TimeUnit.NANOSECONDS.toSeconds(next - start),
+                    (done - lastCompleted) * 1000 / report_interval_millis,
+                    (moved - lastBytes) * 1000.0 / report_interval_millis / (1024 * 1024),
+                    failed.get(), arrivals.size());
+            lastCompleted = done;
+            lastBytes = moved;
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        LatencyRecorder getLatency = merge(gets);
+        LatencyRecorder putLatency = merge(puts);
+        LatencyRecorder all = new LatencyRecorder();
+        all.addAll(getLatency);
+        all.addAll(putLatency);
+        System.out.println();
+        System.out.printf("Transfers: %d completed, %d failed, %d never started%n",
+                completed.get(), failed.get(), arrivals.size());
+        System.out.printf("Throughput: %.1f transfers/s, goodput %.2f MB/s over %.1fs%n",
+                completed.get() / elapsed, bytes.get() / elapsed / (1024 * 1024), elapsed);
+        System.out.println("Retransmissions: " + (tcp ? "n/a over TCP" : TFTPUDPClient.retransmissions() - retransmitsBefore));
+        printLatency("all", all);
+        printLatency("get", getLatency);
+        printLatency("put", putLatency);
+    }
+
+    /**
+     * One simulated client: in closed loop it starts transfers back to back until the end
+     * of the run, in open loop it serves scheduled arrivals until none are due any more.
+     * Arrivals still queued at the end are reported as never started.
+     */
+    private static void runClient(int index, Path dir, Path[] putFiles, BlockingQueue<Long> arrivals, long end,
+                                  LatencyRecorder gets, LatencyRecorder puts) {
+        Path download = dir.resolve("get-" + index + ".bin");
+        String upload = putName + "-" + index + ".bin";
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (true) {
+            long startedAt;
+            if (arrivals != null) {
+                long remaining = end - System.nanoTime();
+                if (remaining <= 0) {
+                    return;
+                }
+                Long due;
+                try {
+                    due = arrivals.poll(remaining, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (due == null) {
+                    return;
+                }
+                startedAt = due;
+            } else {
+                startedAt = System.nanoTime();
+                if (startedAt >= end) {
+                    return;
+                }
+            }
+
+            boolean put = random.nextDouble() < putRatio;
+            boolean ok;
+            long size;
+            try {
+                if (put) {
+                    Path source = putFiles[random.nextInt(putFiles.length)];
+                    ok = tcp ? TFTPTCPClient.put(serverIP, source.toString(), upload)
+                            : TFTPUDPClient.sendFile(serverIP, source.toString(), upload);
+                    size = Files.size(source);
+                } else {
+                    String remote = getFiles[random.nextInt(getFiles.length)];
+                    ok = tcp ? TFTPTCPClient.get(serverIP, remote, download.toString())
+                            : TFTPUDPClient.receiveFile(serverIP, remote, download.toString());
+                    size = ok ? Files.size(download) : 0;
+                }
+            } catch (IOException e) {
+                ok = false;
+                size = 0;
+            }
+
+            if (ok) {
+                (put ? puts : gets).record(System.nanoTime() - startedAt);
+                completed.incrementAndGet();
+                bytes.addAndGet(size);
+            } else {
+                failed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Queues the scheduled arrival time of every transfer in the run. When this thread falls
+     * behind it queues the missed arrivals at once rather than dropping them.
+     */
+    private static void schedule(BlockingQueue<Long> arrivals, long start, long end) {
+        long interval = (long) (1e9 / rate);
+        for (long due = start; due < end; due += interval) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            arrivals.add(due);
+        }
+    }
+
+    private static LatencyRecorder merge(LatencyRecorder[] recorders) {
+        LatencyRecorder merged = new LatencyRecorder();
+        for (LatencyRecorder recorder : recorders) {
+            merged.addAll(recorder);
+        }
+        return merged;
+    }
+
+    private static void printLatency(String label, LatencyRecorder latency) {
+        if (latency.count() == 0) {
+            return;
+        }
+        System.out.printf("Latency %s (ms): p50 %.2f  p99 %.2f  p99.9 %.2f  max %.2f  (%d transfers)%n", label,
+                latency.percentile(50) / 1e6, latency.percentile(99) / 1e6, latency.percentile(99.9) / 1e6,
+                latency.max() / 1e6, latency.count());
+    }
+
+    /**
+     * Parses a byte count with an optional k or m suffix.
+     */
+    private static long parseSize(String value) {
+        String lower = value.trim().toLowerCase();
+        if (lower.endsWith("k")) {
+            return Long.parseLong(lower.substring(0, lower.length() - 1)) * 1024;
+        }
+        if (lower.endsWith("m")) {
+            return Long.parseLong(lower.substring(0, lower.length() - 1)) * 1024 * 1024;
+        }
+        return Long.parseLong(lower);
+    }
+
+    private static Path createFile(Path file, long size) throws IOException {
+        byte[] chunk = new byte[64 * 1024];
+        new Random(size).nextBytes(chunk);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < size; written += chunk.length) {
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+        return file;
+    }
+
+    private static void deleteRecursively(Path dir) {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            List<Path> all = paths.sorted(Comparator.comparingInt(Path::getNameCount).reversed()).toList();
+            for (Path path : all) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            System.err.println("Cleanup failed: " + e.getMessage());
+        }
+    }
+}